@@ -18,8 +18,11 @@
 
 package rbptrees.algo;
 
+import java.util.Collections;
+import java.util.Map;
 import nl.tue.geometrycore.gui.sidepanel.SideTab;
 import rbptrees.data.ColoredPointSet;
+import rbptrees.data.PackedPointSet;
 import rbptrees.data.SupportGraph;
 
 public abstract class Algorithm {
@@ -27,6 +30,7 @@ public abstract class Algorithm {
     private final String name;
     protected ColoredPointSet input;
     protected SupportGraph output;
+    private PackedPointSet packedInput;
 
     public Algorithm(String name) {
         this.name = name;
@@ -34,9 +38,22 @@ public abstract class Algorithm {
 
     public void initialize(ColoredPointSet input) {
         this.input = input;
+        this.packedInput = null;
         output = new SupportGraph(input, getSolutionIdentifier());
     }
 
+    /**
+     * Returns a flat snapshot of the input, created on first use, for inner
+     * loops that only need coordinates and color masks. Point {@code i} of the
+     * snapshot is vertex {@code i} of {@link #output}.
+     */
+    protected PackedPointSet getPackedInput() {
+        if (packedInput == null) {
+            packedInput = new PackedPointSet(input);
+        }
+        return packedInput;
+    }
+
     public String getName() {
         return name;
     }
@@ -55,6 +72,14 @@ public abstract class Algorithm {
         return output;
     }
 
+    /**
+     * Returns counters describing the work done by the last run, by name, so
+     * that they can be reported along with the output. Empty by default.
+     */
+    public Map<String, Number> getStatistics() {
+        return Collections.emptyMap();
+    }
+
     public abstract String getSolutionIdentifier();
 
     public abstract void displaySettings(SideTab tab);
@@ -20,13 +20,21 @@ package rbptrees.algo;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
 import nl.tue.geometrycore.geometry.linear.LineSegment;
 import nl.tue.geometrycore.gui.sidepanel.SideTab;
+import nl.tue.geometrycore.util.DoubleUtil;
 import rbptrees.data.ColoredPointSet;
+import rbptrees.data.CrossingOracle;
+import rbptrees.data.IntList;
 import rbptrees.data.SupportGraph;
 import rbptrees.data.SupportGraph.SupportLink;
 import rbptrees.data.SupportGraph.SupportNode;
@@ -39,62 +47,33 @@ public class BruteForceSolver extends ThreadableAlgorithm {
 
     private ProgressListener listener = null;
     boolean forceTree = false, forcePlanar = true;
+    private boolean parallel = false;
+    private int splitDepth = 12;
 
     // opt
     private double upperbound;
-    private List<CandidateEdge> upperboundEdges;
+    private AtomicReference<Incumbent> incumbent;
     private List<CandidateEdge> candidateEdges;
-    // state
-    private List<CandidateEdge> solution;
-    private double currlength;
-    private int numSplitColors;
-    private int[] componentCountPerColor;
-    private int[][] componentIdsPerColor;
+    // per color, and lastly for all points, the positions of the candidates
+    // with that color
+    private int[][] candidatesPerColor;
+    // components of the graph of all candidates
+    private int groupCount;
+    private CrossingOracle oracle;
     private int edgeUpperbound;
     private int edgeLowerbound;
-    // memory
-    private List<Memory> memories;
-    private List<CandidateEdge> deactivated;
+    private volatile boolean aborted;
+    private final LongAdder nodes = new LongAdder();
 
     private void clearState() {
 
-        upperboundEdges = null;
+        incumbent = null;
         candidateEdges = null;
-        solution = null;
-        currlength = 0;
-        numSplitColors = 0;
+        candidatesPerColor = null;
+        oracle = null;
         edgeUpperbound = 0;
         edgeLowerbound = 0;
-        componentCountPerColor = null;
-        componentIdsPerColor = null;
-        memories = null;
-        deactivated = null;
-    }
-
-    private void printState(int next) {
-        System.out.println("STATE " + next);
-        System.out.println("  split: " + numSplitColors);
-        System.out.print("  component count");
-        int index = 0;
-        for (int c : componentCountPerColor) {
-            System.out.print("  " + index + ":" + c);
-            index++;
-        }
-        System.out.println("");
-        System.out.print("  ids: ");
-        index = 0;
-        for (int[] cs : componentIdsPerColor) {
-            if (index >= 1) {
-                System.out.print("       ");
-            }
-            System.out.print(index + "::");
-            for (int id : cs) {
-                System.out.print("  " + id);
-            }
-            System.out.println("");
-            index++;
-        }
-        System.out.println("");
+        aborted = false;
     }
 
     public BruteForceSolver(boolean forceTree, boolean forcePlanar) {
@@ -117,6 +96,35 @@ public class BruteForceSolver extends ThreadableAlgorithm {
         }
     }
 
+    /**
+     * Sets whether subtrees of the search are explored in parallel. The
+     * length of the result is the same as in a sequential run; among several
+     * optimal supports, another one may be returned.
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * Sets up to how many candidate edges deep the search is split into
+     * parallel tasks.
+     */
+    public void setSplitDepth(int splitDepth) {
+        this.splitDepth = splitDepth;
+    }
+
+    /**
+     * Returns the number of nodes of the search tree visited in the last run.
+     */
+    public long getNodeCount() {
+        return nodes.sum();
+    }
+
+    @Override
+    public Map<String, Number> getStatistics() {
+        return Collections.singletonMap("nodes", getNodeCount());
+    }
+
     @Override
     public void addListener(ProgressListener listener) {
         if (this.listener == null) {
@@ -140,8 +148,10 @@ public class BruteForceSolver extends ThreadableAlgorithm {
     @Override
     public boolean runSync() {
         clearState();
+        nodes.reset();
 
         int pruned = 0;
+        oracle = forcePlanar ? input.getCrossingOracle() : null;
         candidateEdges = new ArrayList(1 + input.getPoints().size() * input.getPoints().size() / 2);
         for (SupportNode u : output.getVertices()) {
             for (SupportNode v : output.getVertices()) {
@@ -163,53 +173,57 @@ public class BruteForceSolver extends ThreadableAlgorithm {
             return Double.compare(o1.length, o2.length);
         });
 
-        solution = new ArrayList();
-        currlength = 0;
-        int k = input.getColors().size();
-        int n = input.size();
-        componentCountPerColor = new int[k];
-        componentIdsPerColor = new int[k][];
-
-        numSplitColors = 0;
-        for (int c = 0; c < k; c++) {
-            componentIdsPerColor[c] = new int[n];
-            componentCountPerColor[c] = 0;
-            for (int i = 0; i < n; i++) {
-                if (output.getVertices().get(i).point.colors.contains(c)) {
-                    componentIdsPerColor[c][i] = i;
-                    componentCountPerColor[c]++;
-                } else {
-                    componentIdsPerColor[c][i] = -1;
-                }
-            }
-            if (componentCountPerColor[c] > 1) {
-                numSplitColors++;
+        IntList[] perColor = new IntList[input.getColors().size() + 1];
+        for (int c = 0; c < perColor.length; c++) {
+            perColor[c] = new IntList();
+        }
+        for (int i = 0; i < candidateEdges.size(); i++) {
+            candidateEdges.get(i).index = i;
+            for (int c : candidateEdges.get(i).colors) {
+                perColor[c].add(i);
             }
+            perColor[perColor.length - 1].add(i);
         }
+        candidatesPerColor = new int[perColor.length][];
+        for (int c = 0; c < perColor.length; c++) {
+            candidatesPerColor[c] = perColor[c].toArray();
+        }
+        if (forcePlanar) {
+            IntStream.range(0, candidateEdges.size()).parallel().forEach((int i) -> {
+                candidateEdges.get(i).conflicts = findConflicts(i);
+            });
+        }
+
+        groupCount = countComponents();
+        incumbent = new AtomicReference<>(new Incumbent(upperbound, null));
+        Search root = new Search();
 
-        edgeLowerbound = input.size() - countComponents();
+        edgeLowerbound = input.size() - groupCount;
         if (forceTree) {
             edgeUpperbound = edgeLowerbound;
         } else {
             edgeUpperbound = 0;
-            for (int c = 0; c < k; c++) {
-                edgeUpperbound += (componentCountPerColor[c] - 1);
+            for (int c = 0; c < root.all; c++) {
+                edgeUpperbound += (root.componentCountPerColor[c] - 1);
             }
         }
 
-        memories = new ArrayList((edgeUpperbound + 1) * k);
-        deactivated = new ArrayList(candidateEdges.size());
-
-        recurse(0);
+        if (parallel) {
+            ForkJoinPool.commonPool().invoke(new Branch(root, 0, 0));
+        } else {
+            root.recurse(0, 0);
+        }
 
+        Incumbent best = incumbent.get();
+        upperbound = best.length;
         boolean success = Double.isFinite(upperbound);
 
-        if (upperboundEdges != null) {
+        if (best.edges != null) {
             while (output.getEdges().size() > 0) {
                 output.removeEdge(output.getEdges().get(output.getEdges().size() - 1));
             }
 
-            for (CandidateEdge e : upperboundEdges) {
+            for (CandidateEdge e : best.edges) {
                 output.addEdge(e.u, e.v);
             }
         }
@@ -222,189 +236,560 @@ public class BruteForceSolver extends ThreadableAlgorithm {
         return success;
     }
 
-    private void recurse(int next) {
+    /**
+     * Replaces the incumbent by the given solution, if that is shorter.
+     */
+    private void offer(double length, List<CandidateEdge> edges) {
+        Incumbent candidate = new Incumbent(length, edges);
+        while (true) {
+            Incumbent current = incumbent.get();
+            if (length >= current.length) {
+                return;
+            }
+            if (incumbent.compareAndSet(current, candidate)) {
+                return;
+            }
+        }
+    }
 
-        //printState(next);
-        if (listener != null && listener.shouldAbort(0, 0)) {
-            return;
+    /**
+     * Returns the positions of the later candidates that cross the candidate
+     * at the given position, in increasing order.
+     */
+    private int[] findConflicts(int i) {
+        CandidateEdge e = candidateEdges.get(i);
+        IntList conflicts = new IntList();
+        for (int j = i + 1; j < candidateEdges.size(); j++) {
+            CandidateEdge f = candidateEdges.get(j);
+            if (f.u == e.u || f.u == e.v || f.v == e.u || f.v == e.v) {
+                continue;
+            }
+            if (crosses(e, f)) {
+                conflicts.add(j);
+            }
         }
+        return conflicts.toArray();
+    }
 
-        if (currlength >= upperbound) {
-            return;
+    private double upperbound() {
+        return incumbent.get().length;
+    }
+
+    /**
+     * Returns whether the search must stop, because the listener asks for it.
+     */
+    private boolean shouldStop() {
+        if (!aborted && listener != null && pollAbort()) {
+            aborted = true;
         }
-        if (numSplitColors == 0) {
-            // valid solution and better than previous
-            upperboundEdges = new ArrayList(solution);
-            upperbound = currlength;
-            //printState(next);
-            return;
+        return aborted;
+    }
+
+    // the listener is called from one thread at a time
+    private synchronized boolean pollAbort() {
+        return listener != null && listener.shouldAbort(0, 0);
+    }
+
+    /**
+     * State of a branch of the search: the edges taken so far and the
+     * components they form per color, with what is needed to undo taking an
+     * edge. Parallel tasks each work on their own copy.
+     *
+     * The components of every color are kept in a union-find structure with
+     * union by rank, but without path compression, so that a union is undone
+     * by resetting a single parent. Find takes logarithmic time.
+     *
+     * Besides the colors, the components of the solution as a whole are kept
+     * under index {@link #all}: every component of the graph of all
+     * candidates must end up connected.
+     *
+     * Connecting the components of a color takes at least the length of a
+     * minimum spanning forest on them, with the active candidates that are
+     * still to be decided on; so does connecting the components of the
+     * solution as a whole. The largest of these bounds the length that a
+     * solution in this branch still adds. The forest of a color is kept until
+     * the components change by another edge than one of its own; taking an
+     * edge of the forest leaves the rest a minimum spanning forest. Once one of
+     * its edges is skipped or deactivated, it is no longer minimum, but its
+     * length is still a lower bound, which is used before recomputing it.
+     */
+    private class Search {
+
+        private final List<CandidateEdge> solution;
+        // adjacency of the solution
+        private final TraversalWorkspace traversal;
+        private double currlength;
+        private int numSplitColors;
+        // index of all points, after the colors
+        private final int all;
+        private final int[] componentCountPerColor;
+        // union-find per color, on the points of that color
+        private final int[][] parentPerColor;
+        private final int[][] rankPerColor;
+        // indexed by position in candidateEdges
+        private final boolean[] active;
+        // memory: per union, its color, and the root that was attached
+        // times two, plus one if that raised the rank of the other root
+        private final IntList unions;
+        private final IntList deactivated;
+        // minimum spanning forest per color, null if it must be recomputed
+        private final Forest[] forests;
+        // memory: the colors of which the forest was replaced, and the old ones
+        private final IntList replacedColors;
+        private final List<Forest> replacedForests;
+        // union-find on the roots of one color, to compute a forest
+        private final int[] scratchParent;
+        private final int[] scratchStamp;
+        private int scratchEpoch = 0;
+        // colors that an edge would connect again, as a bitset over colors;
+        // empty outside the check of a single edge
+        private final long[] alreadyConnected;
+
+        Search() {
+            solution = new ArrayList<>();
+            traversal = new TraversalWorkspace(input);
+            currlength = 0;
+            int k = input.getColors().size();
+            int n = input.size();
+            all = k;
+            componentCountPerColor = new int[k + 1];
+            parentPerColor = new int[k + 1][];
+            rankPerColor = new int[k + 1][];
+
+            numSplitColors = 0;
+            for (int c = 0; c < k; c++) {
+                parentPerColor[c] = new int[n];
+                rankPerColor[c] = new int[n];
+                componentCountPerColor[c] = 0;
+                for (int i = 0; i < n; i++) {
+                    if (output.getVertices().get(i).point.hasColor(c)) {
+                        parentPerColor[c][i] = i;
+                        componentCountPerColor[c]++;
+                    } else {
+                        parentPerColor[c][i] = -1;
+                    }
+                }
+                if (componentCountPerColor[c] > 1) {
+                    numSplitColors++;
+                }
+            }
+            parentPerColor[all] = new int[n];
+            rankPerColor[all] = new int[n];
+            componentCountPerColor[all] = n;
+            for (int i = 0; i < n; i++) {
+                parentPerColor[all][i] = i;
+            }
+
+            active = new boolean[candidateEdges.size()];
+            Arrays.fill(active, true);
+            unions = new IntList();
+            deactivated = new IntList(candidateEdges.size());
+            forests = new Forest[k + 1];
+            replacedColors = new IntList();
+            replacedForests = new ArrayList<>();
+            scratchParent = new int[n];
+            scratchStamp = new int[n];
+            alreadyConnected = new long[(k + 63) >>> 6];
         }
 
-        if (next >= candidateEdges.size()) {
-            return;
+        Search(Search other) {
+            solution = new ArrayList<>(other.solution);
+            traversal = new TraversalWorkspace(input);
+            for (CandidateEdge e : solution) {
+                traversal.addEdge(e.u.getGraphIndex(), e.v.getGraphIndex());
+            }
+            currlength = other.currlength;
+            numSplitColors = other.numSplitColors;
+            all = other.all;
+            componentCountPerColor = other.componentCountPerColor.clone();
+            parentPerColor = new int[other.parentPerColor.length][];
+            rankPerColor = new int[other.rankPerColor.length][];
+            for (int c = 0; c < parentPerColor.length; c++) {
+                parentPerColor[c] = other.parentPerColor[c].clone();
+                rankPerColor[c] = other.rankPerColor[c].clone();
+            }
+            active = other.active.clone();
+            unions = new IntList();
+            deactivated = new IntList(candidateEdges.size());
+            forests = other.forests.clone();
+            replacedColors = new IntList();
+            replacedForests = new ArrayList<>();
+            scratchParent = new int[input.size()];
+            scratchStamp = new int[input.size()];
+            alreadyConnected = new long[other.alreadyConnected.length];
         }
 
-        CandidateEdge e = candidateEdges.get(next);
-        if (e.active) {
-            int minToConnectMaxColor = 0;
-            int maxcolor = -1;
-            for (int c = 0; c < componentCountPerColor.length; c++) {
-                int cnt = componentCountPerColor[c] - 1;
-                if (cnt > minToConnectMaxColor) {
-                    minToConnectMaxColor = cnt;
-                    maxcolor = c;
+        private void printState(int next) {
+            System.out.println("STATE " + next);
+            System.out.println("  split: " + numSplitColors);
+            System.out.print("  component count");
+            int index = 0;
+            for (int c : componentCountPerColor) {
+                System.out.print("  " + index + ":" + c);
+                index++;
+            }
+            System.out.println("");
+            System.out.print("  ids: ");
+            index = 0;
+            for (int[] cs : parentPerColor) {
+                if (index >= 1) {
+                    System.out.print("       ");
+                }
+                System.out.print(index + "::");
+                for (int i = 0; i < cs.length; i++) {
+                    System.out.print("  " + (cs[i] < 0 ? -1 : find(index, i)));
                 }
+                System.out.println("");
+                index++;
             }
-            if (solution.size() + minToConnectMaxColor > edgeUpperbound) {
+            System.out.println("");
+        }
+
+        /**
+         * Decides on the candidate edges from {@code next} on. The search
+         * is split into parallel tasks on taking an edge, while fewer than
+         * {@link #splitDepth} splits were made on this branch.
+         */
+        void recurse(int next, int depth) {
+
+            //printState(next);
+            nodes.increment();
+            if (shouldStop()) {
                 return;
             }
-            if (next + minToConnectMaxColor - 1 >= candidateEdges.size()) {
+
+            double upperbound = upperbound();
+            if (currlength >= upperbound) {
                 return;
             }
-            double forecast = currlength;
-            int pick = next;
-            int counter = minToConnectMaxColor;
-            while (counter > 0) {
-                if (pick == candidateEdges.size()) {
+            if (numSplitColors == 0) {
+                // valid solution and better than previous
+                offer(currlength, new ArrayList<>(solution));
+                //printState(next);
+                return;
+            }
+
+            if (next >= candidateEdges.size()) {
+                return;
+            }
+
+            CandidateEdge e = candidateEdges.get(next);
+            if (active[next]) {
+                int minToConnectMaxColor = 0;
+                for (int c = 0; c < all; c++) {
+                    int cnt = componentCountPerColor[c] - 1;
+                    if (cnt > minToConnectMaxColor) {
+                        minToConnectMaxColor = cnt;
+                    }
+                }
+                if (solution.size() + minToConnectMaxColor > edgeUpperbound) {
+                    return;
+                }
+                if (next + minToConnectMaxColor - 1 >= candidateEdges.size()) {
+                    return;
+                }
+                // the forests may be summed in another order than the solution
+                if (lowerbound(next, upperbound - currlength + DoubleUtil.EPS) == Double.POSITIVE_INFINITY) {
                     return;
                 }
 
-                CandidateEdge f = candidateEdges.get(pick);
-                while (!f.active || !f.colors.contains(maxcolor)) {
-                    pick++;
-                    if (pick == candidateEdges.size()) {
-                        return;
+                // check if it connects new components
+                boolean passCheck = false;
+                int connectedCount = 0;
+                for (int c : e.colors) {
+                    if (find(c, e.u.getGraphIndex()) == find(c, e.v.getGraphIndex())) {
+                        alreadyConnected[c >>> 6] |= 1L << c;
+                        connectedCount++;
+                    } else {
+                        passCheck = true;
                     }
-                    f = candidateEdges.get(pick);
                 }
-                forecast += f.length;
-                pick++;
-                counter--;
-            }
-            int others = edgeLowerbound - solution.size() - minToConnectMaxColor;
-            pick = next;
-            while (others > 0) {
-                if (pick == candidateEdges.size()) {
+
+                if (passCheck && forceTree && connectedCount > 0) {
+                    // check if it doesn't make a cycle (if tree forced)
+                    passCheck = false;
+                }
+
+                if (passCheck && connectedCount > 0 && Double.isFinite(upperbound)) {
+                    // check if there is no shorter edge that can now be avoided
+                    for (CandidateEdge f : solution) {
+                        if (f.colorsWithin(alreadyConnected) && checkConnectivity(e, f)) {
+                            passCheck = false;
+                            //System.out.println("skipping at next = " + next);
+                            break;
+                        }
+                    }
+                }
+                // leave the bitset empty for the next node
+                for (int c : e.colors) {
+                    alreadyConnected[c >>> 6] &= ~(1L << c);
+                }
+
+                if (passCheck && parallel && depth < splitDepth) {
+                    // take the edge in a copy, skip it here
+                    Search copy = new Search(this);
+                    copy.take(e);
+                    ForkJoinTask.invokeAll(new Branch(copy, next + 1, depth + 1), new Branch(this, next + 1, depth + 1));
                     return;
                 }
 
-                CandidateEdge f = candidateEdges.get(pick);
-                while (!f.active || candidateEdges.get(pick).colors.contains(maxcolor)) {
-                    pick++;
-                    if (pick == candidateEdges.size()) {
-                        return;
+                if (passCheck) {
+                    int old_deactivate_count = deactivated.size();
+                    int old_union_count = unions.size();
+                    int old_forest_count = replacedColors.size();
+                    double oldlen = currlength;
+                    take(e);
+
+                    recurse(next + 1, depth);
+
+                    while (deactivated.size() > old_deactivate_count) {
+                        active[deactivated.removeLast()] = true;
+                    }
+
+                    while (unions.size() > old_union_count) {
+                        int undo = unions.removeLast();
+                        int c = unions.removeLast();
+                        int root = undo >> 1;
+                        int[] parent = parentPerColor[c];
+                        if ((undo & 1) != 0) {
+                            rankPerColor[c][parent[root]]--;
+                        }
+                        parent[root] = root;
+                        if (c < all && componentCountPerColor[c] <= 1) {
+                            numSplitColors++;
+                        }
+                        componentCountPerColor[c]++;
                     }
-                    f = candidateEdges.get(pick);
+
+                    while (replacedColors.size() > old_forest_count) {
+                        forests[replacedColors.removeLast()] = replacedForests.remove(replacedForests.size() - 1);
+                    }
+
+                    currlength = oldlen;
+                    solution.remove(solution.size() - 1);
+                    traversal.removeEdge(e.u.getGraphIndex(), e.v.getGraphIndex());
                 }
-                forecast += f.length;
-                pick++;
-                others--;
             }
-            if (forecast >= upperbound) {
-                return;
+            recurse(next + 1, depth);
+        }
+
+        /**
+         * Adds the edge to the solution, with the book keeping that the
+         * caller may undo.
+         */
+        private void take(CandidateEdge e) {
+            solution.add(e);
+            traversal.addEdge(e.u.getGraphIndex(), e.v.getGraphIndex());
+            currlength += e.length;
+
+            if (forcePlanar) {
+                // check if it doesn't make an intersection (if planar forced)
+                for (int i : e.conflicts) {
+                    if (!active[i]) {
+                        continue;
+                    }
+
+                    active[i] = false;
+                    deactivated.add(i);
+                    for (int c = 0; c < forests.length; c++) {
+                        if (forests[c] != null && !forests[c].stale && forests[c].contains(i)) {
+                            replaceForest(c, forests[c].outdated());
+                        }
+                    }
+                }
             }
 
-            // check if it connects new components
-            boolean passCheck = false;
-            List<Integer> alreadyConnected = new ArrayList();
             for (int c : e.colors) {
-                if (componentIdsPerColor[c][e.u.getGraphIndex()] == componentIdsPerColor[c][e.v.getGraphIndex()]) {
-                    alreadyConnected.add(c);
-                } else {
-                    passCheck = true;
+                if (union(c, e) && componentCountPerColor[c] <= 1) {
+                    numSplitColors--;
                 }
             }
+            union(all, e);
+        }
 
-            if (passCheck && forceTree && !alreadyConnected.isEmpty()) {
-                // check if it doesn't make a cycle (if tree forced)
-                passCheck = false;
+        /**
+         * Merges the components of the endpoints of the edge in color
+         * {@code c}, if they differ. Returns whether they did.
+         */
+        private boolean union(int c, CandidateEdge e) {
+            int ru = find(c, e.u.getGraphIndex());
+            int rv = find(c, e.v.getGraphIndex());
+            if (ru == rv) {
+                // nothing to update
+                return false;
+            }
+            // union by rank
+            int[] parent = parentPerColor[c];
+            int[] rank = rankPerColor[c];
+            if (rank[ru] > rank[rv]) {
+                int t = ru;
+                ru = rv;
+                rv = t;
             }
+            parent[ru] = rv;
+            boolean raised = rank[ru] == rank[rv];
+            if (raised) {
+                rank[rv]++;
+            }
+            unions.add(c);
+            unions.add(2 * ru + (raised ? 1 : 0));
+            if (forests[c] != null && forests[c].contains(e.index)) {
+                replaceForest(c, forests[c].without(e.index));
+            } else if (forests[c] != null) {
+                replaceForest(c, null);
+            }
+            componentCountPerColor[c]--;
+            return true;
+        }
 
-            if (passCheck && !alreadyConnected.isEmpty() && Double.isFinite(upperbound)) {
-                // check if there is no shorter edge that can now be avoided
-                for (CandidateEdge f : solution) {
-                    if (alreadyConnected.containsAll(f.colors) && checkConnectivity(e, f)) {
-                        passCheck = false;
-                        //System.out.println("skipping at next = " + next);
-                        break;
+        private void replaceForest(int c, Forest forest) {
+            replacedColors.add(c);
+            replacedForests.add(forests[c]);
+            forests[c] = forest;
+        }
+
+        /**
+         * Returns a lower bound on the length that connecting all colors still
+         * adds: the longest minimum spanning forest of a color, or of all
+         * points, on its components, with the active candidates from
+         * {@code next} on. Returns infinity if a color cannot be connected,
+         * or if the bound is at least the given limit; the forests that are
+         * kept are checked first, so that fewer need to be recomputed.
+         */
+        private double lowerbound(int next, double limit) {
+            double bound = 0;
+            for (int c = 0; c <= all; c++) {
+                if (needed(c) > 0 && forests[c] != null) {
+                    bound = Math.max(bound, forests[c].length);
+                }
+            }
+            for (int c = 0; c <= all && bound < limit; c++) {
+                if (needed(c) > 0 && !valid(c, next)) {
+                    Forest forest = computeForest(c, next);
+                    if (forest == null) {
+                        return Double.POSITIVE_INFINITY;
                     }
+                    replaceForest(c, forest);
+                    bound = Math.max(bound, forest.length);
                 }
             }
+            return bound < limit ? bound : Double.POSITIVE_INFINITY;
+        }
 
-            if (passCheck) {
-                // book keeping
+        private boolean valid(int c, int next) {
+            return forests[c] != null && !forests[c].stale && forests[c].edges[0] >= next;
+        }
 
-                solution.add(e);
-                double oldlen = currlength;
-                currlength += e.length;
+        /**
+         * Returns how many more edges color {@code c}, or all points, needs.
+         */
+        private int needed(int c) {
+            return componentCountPerColor[c] - (c == all ? groupCount : 1);
+        }
 
-                int n = input.size();
+        /**
+         * Runs Kruskal on the components of color {@code c}, with the active
+         * candidates from {@code next} on. Returns null if these do not
+         * connect the color.
+         */
+        private Forest computeForest(int c, int next) {
+            if (++scratchEpoch == Integer.MAX_VALUE) {
+                Arrays.fill(scratchStamp, 0);
+                scratchEpoch = 1;
+            }
+            int[] cands = candidatesPerColor[c];
+            int[] edges = new int[needed(c)];
+            int size = 0;
+            int i = Arrays.binarySearch(cands, next);
+            for (i = i < 0 ? -i - 1 : i; i < cands.length && size < edges.length; i++) {
+                if (!active[cands[i]]) {
+                    continue;
+                }
+                CandidateEdge f = candidateEdges.get(cands[i]);
+                int a = scratchFind(find(c, f.u.getGraphIndex()));
+                int b = scratchFind(find(c, f.v.getGraphIndex()));
+                if (a != b) {
+                    scratchParent[a] = b;
+                    edges[size++] = cands[i];
+                }
+            }
+            return size < edges.length ? null : new Forest(edges, false);
+        }
 
-                int old_deactivate_count = deactivated.size();
-                if (forcePlanar) {
-                    // check if it doesn't make an intersection (if planar forced)
-                    for (int i = next + 1; i < candidateEdges.size(); i++) {
-                        CandidateEdge f = candidateEdges.get(i);
-                        if (f.u == e.u || f.u == e.v || f.v == e.u || f.v == e.v) {
-                            continue;
-                        }
+        private int scratchFind(int i) {
+            if (scratchStamp[i] != scratchEpoch) {
+                scratchStamp[i] = scratchEpoch;
+                scratchParent[i] = i;
+            }
+            while (scratchParent[i] != i) {
+                // path halving, as this one is never undone
+                scratchParent[i] = scratchParent[scratchParent[i]];
+                i = scratchParent[i];
+            }
+            return i;
+        }
 
-                        if (f.segment.intersect(e.segment).isEmpty()) {
-                            continue;
-                        }
+        /**
+         * Returns the root of the component of point {@code i} in color
+         * {@code c}, which the point must have.
+         */
+        private int find(int c, int i) {
+            int[] parent = parentPerColor[c];
+            while (parent[i] != i) {
+                i = parent[i];
+            }
+            return i;
+        }
 
-                        f.active = false;
-                        deactivated.add(f);
-                    }
-                }
+        private boolean checkConnectivity(CandidateEdge add, CandidateEdge ignore) {
+            // check if solution is still connected, if we imagine including "add" and remove "ignore"
 
-                int old_memory_count = memories.size();
-                for (int c : e.colors) {
-                    int[] id = componentIdsPerColor[c];
-                    if (id[e.u.getGraphIndex()] == id[e.v.getGraphIndex()]) {
-                        // nothing to update
-                    } else {
-                        // update component
-                        Memory memory = new Memory();
-                        memories.add(memory);
-                        memory.color = c;
-                        memory.oldnumber = id[e.u.getGraphIndex()];
-                        for (int i = 0; i < n; i++) {
-                            if (id[i] == memory.oldnumber) {
-                                id[i] = id[e.v.getGraphIndex()];
-                                memory.changed.add(i);
-                            }
-                        }
-                        componentCountPerColor[c]--;
-                        if (componentCountPerColor[c] <= 1) {
-                            numSplitColors--;
-                        }
-                    }
+            int u = ignore.u.getGraphIndex(), v = ignore.v.getGraphIndex();
+            traversal.addEdge(add.u.getGraphIndex(), add.v.getGraphIndex());
+
+            boolean result = true;
+            for (int c : ignore.colors) {
+                traversal.search(u, c, u, v, v);
+                if (!traversal.visited(v)) {
+                    // cant reach
+                    result = false;
+                    break;
                 }
+            }
 
-                recurse(next + 1);
+            traversal.removeEdge(add.u.getGraphIndex(), add.v.getGraphIndex());
+            return result;
+        }
+    }
 
-                while (deactivated.size() > old_deactivate_count) {
-                    CandidateEdge f = deactivated.remove(deactivated.size() - 1);
-                    f.active = true;
-                }
+    /**
+     * Task that decides on the candidate edges from {@code next} on, in the
+     * given branch.
+     */
+    private class Branch extends RecursiveAction {
 
-                while (memories.size() > old_memory_count) {
-                    Memory memory = memories.remove(memories.size() - 1);
-                    for (int i : memory.changed) {
-                        componentIdsPerColor[memory.color][i] = memory.oldnumber;
-                    }
-                    if (componentCountPerColor[memory.color] <= 1) {
-                        numSplitColors++;
-                    }
-                    componentCountPerColor[memory.color]++;
-                }
+        private static final long serialVersionUID = 1L;
 
-                currlength = oldlen;
-                solution.remove(solution.size() - 1);
-            }
+        private final Search search;
+        private final int next, depth;
+
+        Branch(Search search, int next, int depth) {
+            this.search = search;
+            this.next = next;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute() {
+            search.recurse(next, depth);
+        }
+    }
+
+    private boolean crosses(CandidateEdge e, CandidateEdge f) {
+        if (oracle != null) {
+            return oracle.crosses(e.id, f.id);
         }
-        recurse(next + 1);
+        return !e.segment.intersect(f.segment).isEmpty();
     }
 
     @Override
@@ -425,6 +810,14 @@ public class BruteForceSolver extends ThreadableAlgorithm {
         tab.addCheckbox("Force planar", forcePlanar, (e, v) -> {
             forcePlanar = v;
         });
+        tab.addCheckbox("Parallel", parallel, (e, v) -> {
+            parallel = v;
+        });
+        tab.makeSplit(2, 2);
+        tab.addLabel("Split depth");
+        tab.addIntegerSpinner(splitDepth, 0, Integer.MAX_VALUE, 1, (e, v) -> {
+            splitDepth = v;
+        });
     }
 
     private int countComponents() {
@@ -458,97 +851,101 @@ public class BruteForceSolver extends ThreadableAlgorithm {
         }
     }
 
-    private boolean checkConnectivity(CandidateEdge add, CandidateEdge ignore) {
-        // check if solution is still connected, if we imagine including "add" and remove "ignore"
-
-        int[] visited = new int[input.size()];
-        // -1 unreached
-        // 0 reached from u
-        // 1 reached from v
-
-        int index = solution.indexOf(ignore);
-        solution.set(index, add);
-
-        boolean result = true;
-
-        // bidirectional bfs
-        colorloop:
-        for (int c : ignore.colors) {
-
-            Arrays.fill(visited, -1);
-
-            LinkedList<SupportNode> queue = new LinkedList();
-            visited[ignore.u.getGraphIndex()] = 0;
-            queue.add(ignore.u);
-
-            visited[ignore.v.getGraphIndex()] = 1;
-            queue.add(ignore.v);
+    /**
+     * Minimum spanning forest of a color, as increasing positions in
+     * candidateEdges; or, if stale, a forest that was minimum before some of
+     * its edges were deactivated.
+     */
+    private class Forest {
+
+        final int[] edges;
+        final double length;
+        final boolean stale;
+
+        Forest(int[] edges, boolean stale) {
+            this.edges = edges;
+            this.stale = stale;
+            double sum = 0;
+            for (int i : edges) {
+                sum += candidateEdges.get(i).length;
+            }
+            this.length = sum;
+        }
 
-            while (!queue.isEmpty()) {
-                SupportNode n = queue.removeFirst();
+        boolean contains(int i) {
+            return Arrays.binarySearch(edges, i) >= 0;
+        }
 
-                for (CandidateEdge e : solution) {
-                    if (!e.colors.contains(c)) {
-                        continue;
-                    }
-                    SupportNode other;
-                    if (e.u == n) {
-                        other = e.v;
-                    } else if (e.v == n) {
-                        other = e.u;
-                    } else {
-                        continue;
-                    }
-                    switch (visited[other.getGraphIndex()]) {
-                        case -1:
-                            visited[other.getGraphIndex()] = visited[n.getGraphIndex()];
-                            queue.addLast(other);
-                            break;
-                        case 0:
-                        case 1:
-                            if (visited[other.getGraphIndex()] == visited[n.getGraphIndex()]) {
-                                // same component
-                            } else {
-                                // the u and v component meet, found a path
-                                continue colorloop;
-                            }
-                            break;
-                    }
+        Forest without(int i) {
+            int[] rest = new int[edges.length - 1];
+            int j = 0;
+            for (int f : edges) {
+                if (f != i) {
+                    rest[j++] = f;
                 }
             }
-
-            // cant reach
-            result = false;
-            break;
+            return new Forest(rest, stale);
         }
 
-        solution.set(index, ignore);
-        return result;
+        Forest outdated() {
+            return new Forest(edges, true);
+        }
     }
 
-    private class Memory {
+    /**
+     * Best solution found so far; the edges are null for the initial upper
+     * bound, if any.
+     */
+    private static class Incumbent {
+
+        final double length;
+        final List<CandidateEdge> edges;
 
-        int color;
-        int oldnumber;
-        List<Integer> changed = new ArrayList();
+        Incumbent(double length, List<CandidateEdge> edges) {
+            this.length = length;
+            this.edges = edges;
+        }
     }
 
     private class CandidateEdge {
 
+        int id;
+        // position in candidateEdges
+        int index;
         double length;
         LineSegment segment;
         SupportNode u, v;
-        Set<Integer> colors;
-        boolean active;
+        int[] colors;
+        // the same colors, as a bitset over colors
+        long[] colorMask;
+        // later candidates that cross this one, if planarity is forced
+        int[] conflicts;
 
         public CandidateEdge(SupportNode u, SupportNode v) {
             this.u = u;
             this.v = v;
             this.segment = new LineSegment(u, v);
             this.length = segment.length();
-            this.colors = new HashSet(u.point.colors);
-            this.colors.retainAll(v.point.colors);
-            this.active = true;
+            List<Integer> common = u.point.getCommonColors(v.point);
+            this.colors = new int[common.size()];
+            this.colorMask = new long[(input.getColors().size() + 63) >>> 6];
+            for (int i = 0; i < colors.length; i++) {
+                colors[i] = common.get(i);
+                colorMask[colors[i] >>> 6] |= 1L << colors[i];
+            }
+            this.id = oracle == null ? -1 : oracle.candidate(u.getGraphIndex(), v.getGraphIndex());
+        }
+
+        /**
+         * Returns whether all colors of this edge are in the given bitset.
+         */
+        boolean colorsWithin(long[] mask) {
+            for (int w = 0; w < colorMask.length; w++) {
+                if ((colorMask[w] & ~mask[w]) != 0) {
+                    return false;
+                }
+            }
+            return true;
         }
 
     }
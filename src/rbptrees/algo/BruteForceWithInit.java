@@ -18,6 +18,7 @@
 
 package rbptrees.algo;
 
+import java.util.Map;
 import nl.tue.geometrycore.gui.sidepanel.SideTab;
 import rbptrees.data.ColoredPointSet;
 import rbptrees.data.SupportGraph;
@@ -38,7 +39,7 @@ public class BruteForceWithInit extends ThreadableAlgorithm {
     public void initialize(ColoredPointSet input) {
         LocalSearch ls = new LocalSearch(bfs.forceTree, bfs.forcePlanar);
         ls.initialize(input);
-        ls.run();
+        ls.runSync();
         bfs.initialize(input, ls.getOutput());
         output = bfs.output;
     }
@@ -78,6 +79,11 @@ public class BruteForceWithInit extends ThreadableAlgorithm {
         return bfs.getOutput();
     }
 
+    @Override
+    public Map<String, Number> getStatistics() {
+        return bfs.getStatistics();
+    }
+
 
 
 }
@@ -0,0 +1,181 @@
+/*
+ * This file is part of SPSSH.
+ *
+ * SPSSH is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPSSH is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPSSH. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package rbptrees.algo;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import rbptrees.algo.LocalSearch.CandidateMode;
+import rbptrees.data.ColoredPointSet;
+import rbptrees.data.ColoredPointSet.ColoredPoint;
+import rbptrees.data.IntList;
+import rbptrees.data.PackedPointSet;
+
+/**
+ * Pairs of points that local search considers as replacement edges. Pairs
+ * are numbered in the order in which they were added, and are stored in
+ * primitive lists, per color that both points share.
+ *
+ * A pair can only replace an edge for a color that both its points have, so
+ * in all modes but {@link CandidateMode#EXHAUSTIVE}, only pairs that share a
+ * color are stored. The exhaustive mode stores all pairs and lists every pair
+ * for every color; it exists for comparison with the original implementation.
+ *
+ * Only {@link #add(int, int)} modifies the pairs; other methods may be called
+ * from several threads at once.
+ */
+final class CandidateEdges {
+
+    private final List<ColoredPoint> points;
+    private final boolean exhaustive;
+    private final IntList from, to;
+    private final Map<Long, Integer> ids;
+    private final Map<Integer, IntList> byColor;
+    // all ids, only in exhaustive mode
+    private final IntList all;
+
+    private CandidateEdges(ColoredPointSet input, boolean exhaustive) {
+        this.points = input.getPoints();
+        this.exhaustive = exhaustive;
+        this.from = new IntList();
+        this.to = new IntList();
+        this.ids = new HashMap<>();
+        this.byColor = new HashMap<>();
+        this.all = exhaustive ? new IntList() : null;
+    }
+
+    /**
+     * Generates the candidates of the given mode. For
+     * {@link CandidateMode#NEAREST}, every point is paired with its
+     * {@code k} nearest points of every color it has.
+     */
+    static CandidateEdges create(CandidateMode mode, ColoredPointSet input, PackedPointSet packed, int k) {
+        CandidateEdges cands = new CandidateEdges(input, mode == CandidateMode.EXHAUSTIVE);
+        int n = packed.size();
+        switch (mode) {
+            case EXHAUSTIVE:
+                for (int i = 0; i < n; i++) {
+                    for (int j = i + 1; j < n; j++) {
+                        cands.add(i, j);
+                    }
+                }
+                break;
+            case COLOR_SHARING:
+                for (int i = 0; i < n; i++) {
+                    for (int j = i + 1; j < n; j++) {
+                        if (cands.points.get(i).hasCommonColor(cands.points.get(j))) {
+                            cands.add(i, j);
+                        }
+                    }
+                }
+                break;
+            case NEAREST:
+                for (int c : input.getColors()) {
+                    int[] subset = input.indicesOf(c);
+                    KdTree tree = new KdTree(packed, subset);
+                    for (int p : subset) {
+                        // the nearest point is p itself, or one coinciding with it
+                        for (int q : tree.nearest(packed.x(p), packed.y(p), k + 1)) {
+                            if (q != p) {
+                                cands.add(p, q);
+                            }
+                        }
+                    }
+                }
+                break;
+            case DELAUNAY:
+                for (int c : input.getColors()) {
+                    int[] subset = input.indicesOf(c);
+                    int[] edges = new EuclideanMST(packed, subset).triangulation();
+                    if (edges == null) {
+                        // degenerate, for example collinear: take all pairs
+                        for (int i = 0; i < subset.length; i++) {
+                            for (int j = i + 1; j < subset.length; j++) {
+                                cands.add(subset[i], subset[j]);
+                            }
+                        }
+                    } else {
+                        for (int i = 0; i < edges.length; i += 2) {
+                            cands.add(edges[i], edges[i + 1]);
+                        }
+                    }
+                }
+                break;
+        }
+        return cands;
+    }
+
+    private static long key(int a, int b) {
+        return a < b ? ((long) a << 32) | b : ((long) b << 32) | a;
+    }
+
+    /**
+     * Adds the pair of points {@code a} and {@code b}, unless it is already
+     * present. Returns its id.
+     */
+    int add(int a, int b) {
+        long key = key(a, b);
+        Integer id = ids.get(key);
+        if (id != null) {
+            return id;
+        }
+        id = from.size();
+        from.add(Math.min(a, b));
+        to.add(Math.max(a, b));
+        ids.put(key, id);
+        if (exhaustive) {
+            all.add(id);
+            return id;
+        }
+        for (int c : points.get(a).getCommonColors(points.get(b))) {
+            IntList list = byColor.get(c);
+            if (list == null) {
+                list = new IntList();
+                byColor.put(c, list);
+            }
+            list.add(id);
+        }
+        return id;
+    }
+
+    int size() {
+        return from.size();
+    }
+
+    int from(int id) {
+        return from.get(id);
+    }
+
+    int to(int id) {
+        return to.get(id);
+    }
+
+    /**
+     * Returns the ids of the pairs that may replace an edge for the given
+     * color, in increasing order. In exhaustive mode, this is every pair.
+     */
+    IntList ofColor(int color) {
+        if (exhaustive) {
+            return all;
+        }
+        IntList list = byColor.get(color);
+        return list == null ? new IntList(1) : list;
+    }
+
+}
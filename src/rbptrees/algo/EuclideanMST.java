@@ -0,0 +1,362 @@
+/*
+ * This file is part of SPSSH.
+ *
+ * SPSSH is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPSSH is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPSSH. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package rbptrees.algo;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import nl.tue.geometrycore.algorithms.delaunay.DelaunayTriangulation;
+import nl.tue.geometrycore.geometry.linear.LineSegment;
+import nl.tue.geometrycore.graphs.simple.SimpleEdge;
+import nl.tue.geometrycore.graphs.simple.SimpleGraph;
+import nl.tue.geometrycore.graphs.simple.SimpleVertex;
+import rbptrees.data.IntList;
+import rbptrees.data.PackedPointSet;
+
+/**
+ * Euclidean minimum spanning tree on a subset of a point set, computed with
+ * Prim's algorithm on the Delaunay triangulation of the subset. Optionally,
+ * some pairs of points can be marked as free: these are connected at no cost.
+ *
+ * Prim's algorithm grows the tree from a root and always adds the shortest
+ * edge leaving the tree; ties are broken in favor of the tree vertex that was
+ * added first, and then the outside point that comes first in the subset. For
+ * points in general position, this gives the same tree as running Prim on all
+ * pairs. If the triangulation fails, for example on collinear points, a
+ * quadratic Prim on all pairs is used instead.
+ *
+ * The triangulation is computed once and reused when the tree is computed
+ * again with other free pairs. Instances for different subsets are independent
+ * and can be used from different threads.
+ */
+final class EuclideanMST {
+
+    private final PackedPointSet points;
+    private final int[] subset;
+    // local index of every point of the point set, or -1
+    private final int[] local;
+    private IntList[] free = null;
+    // adjacency of the triangulation, null if it failed
+    private IntList[] adj = null;
+    private boolean triangulated = false;
+
+    /**
+     * Prepares a spanning tree on the given point indices.
+     */
+    EuclideanMST(PackedPointSet points, int[] subset) {
+        this.points = points;
+        this.subset = subset;
+        this.local = new int[points.size()];
+        Arrays.fill(local, -1);
+        for (int i = 0; i < subset.length; i++) {
+            local[subset[i]] = i;
+        }
+    }
+
+    /**
+     * Marks the pair of points {@code i} and {@code j}, both in the subset, as
+     * free.
+     */
+    void addFreeEdge(int i, int j) {
+        if (free == null) {
+            free = new IntList[subset.length];
+        }
+        addNeighbor(free, local[i], local[j]);
+        addNeighbor(free, local[j], local[i]);
+    }
+
+    /**
+     * Removes all free pairs.
+     */
+    void clearFreeEdges() {
+        free = null;
+    }
+
+    /**
+     * Computes the triangulation ahead of the first call to
+     * {@link #compute(int)}.
+     */
+    void prepare() {
+        if (!triangulated && subset.length > 1) {
+            adj = triangulate();
+            triangulated = true;
+        }
+    }
+
+    /**
+     * Returns the edges of the Delaunay triangulation of the subset, as
+     * consecutive pairs of point indices, or null if it could not be computed.
+     * Coinciding points are connected to one of them only.
+     */
+    int[] triangulation() {
+        if (subset.length <= 1) {
+            return new int[0];
+        }
+        prepare();
+        if (adj == null) {
+            return null;
+        }
+        IntList edges = new IntList();
+        for (int a = 0; a < adj.length; a++) {
+            if (adj[a] == null) {
+                continue;
+            }
+            for (int i = 0; i < adj[a].size(); i++) {
+                int b = adj[a].get(i);
+                if (a < b) {
+                    edges.add(subset[a]);
+                    edges.add(subset[b]);
+                }
+            }
+        }
+        return edges.toArray();
+    }
+
+    private static void addNeighbor(IntList[] adj, int a, int b) {
+        if (adj[a] == null) {
+            adj[a] = new IntList();
+        }
+        adj[a].add(b);
+    }
+
+    private double weight(int a, int b) {
+        return points.squaredDistance(subset[a], subset[b]);
+    }
+
+    /**
+     * Computes the tree, grown from the given point index. Returns the edges
+     * in the order in which Prim's algorithm adds them, as consecutive pairs
+     * of point indices: the first of every pair is already in the tree, the
+     * second is the point that the edge adds.
+     */
+    int[] compute(int root) {
+        int s = subset.length;
+        if (s <= 1) {
+            return new int[0];
+        }
+        prepare();
+        int[] tree = adj == null ? null : computeSparse(adj, local[root]);
+        if (tree == null) {
+            tree = computeDense(local[root]);
+        }
+        for (int i = 0; i < tree.length; i++) {
+            tree[i] = subset[tree[i]];
+        }
+        return tree;
+    }
+
+    /**
+     * Returns the adjacency lists of the Delaunay triangulation of the subset,
+     * or null if it could not be computed.
+     */
+    private IntList[] triangulate() {
+        int s = subset.length;
+        IntList[] adj = new IntList[s];
+
+        // the triangulation cannot handle coinciding points, so only the first
+        // of every group of coinciding points is triangulated, and the others
+        // are attached to it
+        Integer[] sorted = new Integer[s];
+        for (int i = 0; i < s; i++) {
+            sorted[i] = i;
+        }
+        Arrays.sort(sorted, (Integer a, Integer b) -> {
+            int c = Double.compare(points.x(subset[a]), points.x(subset[b]));
+            return c != 0 ? c : Double.compare(points.y(subset[a]), points.y(subset[b]));
+        });
+        Graph graph = new Graph();
+        IntList vertices = new IntList(s);
+        int rep = -1;
+        for (int i : sorted) {
+            int p = subset[i];
+            if (rep >= 0 && points.x(p) == points.x(subset[rep]) && points.y(p) == points.y(subset[rep])) {
+                addNeighbor(adj, i, rep);
+                addNeighbor(adj, rep, i);
+            } else {
+                rep = i;
+                graph.addVertex(points.x(p), points.y(p));
+                vertices.add(i);
+            }
+        }
+
+        if (!new DelaunayTriangulation<>(graph, (LineSegment ls) -> ls).run()) {
+            return null;
+        }
+        for (Edge e : graph.getEdges()) {
+            int a = vertices.get(e.getStart().getGraphIndex());
+            int b = vertices.get(e.getEnd().getGraphIndex());
+            addNeighbor(adj, a, b);
+            addNeighbor(adj, b, a);
+        }
+        return adj;
+    }
+
+    /**
+     * Runs Prim with a heap on the given adjacency lists and the free pairs.
+     * Returns null if that does not span the subset.
+     */
+    private int[] computeSparse(IntList[] adj, int root) {
+        int s = subset.length;
+        boolean[] intree = new boolean[s];
+        int[] order = new int[s];
+        int[] tree = new int[2 * (s - 1)];
+
+        PriorityQueue<Candidate> queue = new PriorityQueue<>();
+        intree[root] = true;
+        order[0] = root;
+        int size = 1;
+        relax(queue, intree, adj, root, 0);
+        while (size < s && !queue.isEmpty()) {
+            Candidate c = queue.poll();
+            if (intree[c.out]) {
+                continue;
+            }
+            tree[2 * (size - 1)] = order[c.in];
+            tree[2 * (size - 1) + 1] = c.out;
+            intree[c.out] = true;
+            order[size] = c.out;
+            relax(queue, intree, adj, c.out, size);
+            size++;
+        }
+        return size == s ? tree : null;
+    }
+
+    private void relax(PriorityQueue<Candidate> queue, boolean[] intree, IntList[] adj, int a, int pos) {
+        if (adj[a] != null) {
+            for (int i = 0; i < adj[a].size(); i++) {
+                int b = adj[a].get(i);
+                if (!intree[b]) {
+                    queue.add(new Candidate(weight(a, b), pos, b));
+                }
+            }
+        }
+        if (free != null && free[a] != null) {
+            for (int i = 0; i < free[a].size(); i++) {
+                int b = free[a].get(i);
+                if (!intree[b]) {
+                    queue.add(new Candidate(0, pos, b));
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs Prim on all pairs of the subset, in quadratic time.
+     */
+    private int[] computeDense(int root) {
+        int s = subset.length;
+        boolean[] intree = new boolean[s];
+        boolean[] isfree = new boolean[s];
+        double[] dist = new double[s];
+        // position in the tree of the closest tree vertex
+        int[] from = new int[s];
+        int[] order = new int[s];
+        int[] tree = new int[2 * (s - 1)];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+
+        int a = root;
+        for (int size = 0; size < s; size++) {
+            if (size > 0) {
+                // closest outside point; ties go to the lowest position
+                a = -1;
+                for (int b = 0; b < s; b++) {
+                    if (!intree[b] && (a < 0 || dist[b] < dist[a]
+                            || (dist[b] == dist[a] && from[b] < from[a]))) {
+                        a = b;
+                    }
+                }
+                tree[2 * (size - 1)] = order[from[a]];
+                tree[2 * (size - 1) + 1] = a;
+            }
+            intree[a] = true;
+            order[size] = a;
+
+            if (free != null && free[a] != null) {
+                for (int i = 0; i < free[a].size(); i++) {
+                    isfree[free[a].get(i)] = true;
+                }
+            }
+            for (int b = 0; b < s; b++) {
+                if (intree[b]) {
+                    continue;
+                }
+                double d = isfree[b] ? 0 : weight(a, b);
+                if (d < dist[b]) {
+                    dist[b] = d;
+                    from[b] = size;
+                }
+            }
+            if (free != null && free[a] != null) {
+                for (int i = 0; i < free[a].size(); i++) {
+                    isfree[free[a].get(i)] = false;
+                }
+            }
+        }
+        return tree;
+    }
+
+    private static class Candidate implements Comparable<Candidate> {
+
+        final double dist;
+        // position in the tree of the tree vertex
+        final int in;
+        final int out;
+
+        Candidate(double dist, int in, int out) {
+            this.dist = dist;
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public int compareTo(Candidate o) {
+            int c = Double.compare(dist, o.dist);
+            if (c == 0) {
+                c = Integer.compare(in, o.in);
+            }
+            if (c == 0) {
+                c = Integer.compare(out, o.out);
+            }
+            return c;
+        }
+    }
+
+    private static class Graph extends SimpleGraph<LineSegment, Vertex, Edge> {
+
+        @Override
+        public Vertex createVertex(double x, double y) {
+            return new Vertex(x, y);
+        }
+
+        @Override
+        public Edge createEdge() {
+            return new Edge();
+        }
+    }
+
+    private static class Vertex extends SimpleVertex<LineSegment, Vertex, Edge> {
+
+        Vertex(double x, double y) {
+            super(x, y);
+        }
+    }
+
+    private static class Edge extends SimpleEdge<LineSegment, Vertex, Edge> {
+    }
+
+}
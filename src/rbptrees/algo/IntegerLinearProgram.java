@@ -41,6 +41,7 @@ import nl.tue.geometrycore.util.DoubleUtil;
 import rbptrees.algo.cplex.Callback;
 import rbptrees.data.ColoredPointSet;
 import rbptrees.data.ColoredPointSet.ColoredPoint;
+import rbptrees.data.CrossingOracle;
 import rbptrees.data.SupportGraph;
 import rbptrees.data.SupportGraph.SupportNode;
 
@@ -193,7 +194,7 @@ public class IntegerLinearProgram extends ThreadableAlgorithm {
             cplex.clearCallbacks();
 
             if (!callback.isAborted()) {
-                output.getEdges().clear();
+                output.clearEdges();
                 createEdges(cplex);
                 callback.done();
                 return true;
@@ -436,13 +437,11 @@ public class IntegerLinearProgram extends ThreadableAlgorithm {
         int i;
         int j;
         int ij;
-        LineSegment ls;
 
         Edge(int i, int j) {
             this.i = i;
             this.j = j;
             this.ij = edgeIndex(i, j);
-            this.ls = new LineSegment(points.get(i), points.get(j));
         }
     }
 
@@ -452,9 +451,11 @@ public class IntegerLinearProgram extends ThreadableAlgorithm {
         private DoublyLinkedList<UnconstrainedIntersection>[] intersections;
         private int uncheckedcount;
         private Edge[] segments;
+        private final CrossingOracle oracle;
 
         public LazyEvaluation(IloCplex cplex) {
             this.cplex = cplex;
+            this.oracle = input.getCrossingOracle();
         }
 
         @SuppressWarnings("unchecked")
@@ -474,8 +475,7 @@ public class IntegerLinearProgram extends ThreadableAlgorithm {
             // there can only be flow when an edge is selected
             for (int i = 0; i < N; ++i) {
                 for (int j = i + 1; j < N; ++j) {
-                    List<Integer> sharedColors = new ArrayList<>(points.get(i).colors);
-                    sharedColors.retainAll(points.get(j).colors);
+                    List<Integer> sharedColors = points.get(i).getCommonColors(points.get(j));
                     IloLinearNumExpr maxEdgeFlow = cplex.linearNumExpr();
                     maxEdgeFlow.addTerm(e[edgeIndex(i, j)], N - 1);
                     for (Integer c : sharedColors) {
@@ -496,10 +496,10 @@ public class IntegerLinearProgram extends ThreadableAlgorithm {
 
             for (Integer c : input.getColors()) {
                 // everything flows to a sink
-                int sinkIndex = points.indexOf(sinks.get(c));
+                int sinkIndex = sinks.get(c).getIndex();
                 IloLinearNumExpr flowSum = cplex.linearNumExpr();
                 for (ColoredPointSet.ColoredPoint p : input.iterateUnion(c)) {
-                    int pIndex = points.indexOf(p);
+                    int pIndex = p.getIndex();
                     if (pIndex != sinkIndex) {
                         flowSum.addTerm(1.0, f[flowIndex(c, pIndex, sinkIndex)]);
                     }
@@ -508,7 +508,7 @@ public class IntegerLinearProgram extends ThreadableAlgorithm {
 
                 // all vertices have an outflow of 1, except the sinks
                 for (ColoredPointSet.ColoredPoint v : input.iterateUnion(c)) {
-                    int vIndex = points.indexOf(v);
+                    int vIndex = v.getIndex();
                     if (vIndex == sinkIndex) {
                         continue;
                     }
@@ -517,7 +517,7 @@ public class IntegerLinearProgram extends ThreadableAlgorithm {
                         if (v.equals(w)) {
                             continue;
                         }
-                        int wIndex = points.indexOf(w);
+                        int wIndex = w.getIndex();
                         flowThroughV.addTerm(1.0, f[flowIndex(c, vIndex, wIndex)]);
                         flowThroughV.addTerm(-1.0, f[flowIndex(c, wIndex, vIndex)]);
                     }
@@ -590,6 +590,10 @@ public class IntegerLinearProgram extends ThreadableAlgorithm {
                 return false;
             }
 
+            if (oracle != null) {
+                return oracle.crosses(i, j, k, l);
+            }
+
             LineSegment uv = new LineSegment(points.get(i), points.get(j));
             LineSegment wx = new LineSegment(points.get(k), points.get(l));
 
@@ -654,7 +658,7 @@ public class IntegerLinearProgram extends ThreadableAlgorithm {
                         // shared endpoint
                         continue;
                     }
-                    if (!eb.ls.intersect(ea.ls).isEmpty() && (indicators.length == 0 || indicators[edgePairIndex(ea.ij, eb.ij)] < eps)) {
+                    if (checkIntersection(ea.i, ea.j, eb.i, eb.j) && (indicators.length == 0 || indicators[edgePairIndex(ea.ij, eb.ij)] < eps)) {
                         // edges intersect, and either no indicators or indicator is turned off
                         addIntersectionConstraint(ea.ij, eb.ij, true);
                         cnt++;
@@ -0,0 +1,216 @@
+/*
+ * This file is part of SPSSH.
+ *
+ * SPSSH is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPSSH is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPSSH. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package rbptrees.algo;
+
+import java.util.PriorityQueue;
+import rbptrees.data.PackedPointSet;
+
+/**
+ * Static 2-d tree over some points of a point set, for nearest neighbor
+ * queries. Among points at the same distance, the one that comes first in the
+ * array given to the constructor is reported first, just like a linear scan
+ * over that array with a strict comparison would.
+ */
+final class KdTree {
+
+    private final PackedPointSet points;
+    private final int[] items;
+    // positions in items, arranged as an implicit tree: the median of every
+    // range is the root of that range, split by x on even depths
+    private final int[] tree;
+
+    KdTree(PackedPointSet points, int[] items) {
+        this.points = points;
+        this.items = items;
+        this.tree = new int[items.length];
+        for (int i = 0; i < tree.length; i++) {
+            tree[i] = i;
+        }
+        build(0, tree.length, true);
+    }
+
+    private double coord(int pos, boolean x) {
+        int p = items[pos];
+        return x ? points.x(p) : points.y(p);
+    }
+
+    private void build(int lo, int hi, boolean x) {
+        if (hi - lo <= 1) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, x);
+        build(lo, mid, !x);
+        build(mid + 1, hi, !x);
+    }
+
+    /**
+     * Rearranges tree[lo..hi] such that tree[k] holds the element that would be
+     * there if the range were sorted by the given coordinate.
+     */
+    private void select(int lo, int hi, int k, boolean x) {
+        while (lo < hi) {
+            double pivot = coord(tree[(lo + hi) >>> 1], x);
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (coord(tree[i], x) < pivot) {
+                    i++;
+                }
+                while (coord(tree[j], x) > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int t = tree[i];
+                    tree[i] = tree[j];
+                    tree[j] = t;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    int size() {
+        return items.length;
+    }
+
+    /**
+     * Returns the point nearest to point {@code q} of the point set, or -1 if
+     * the tree is empty.
+     */
+    int nearest(int q) {
+        return nearest(points.x(q), points.y(q));
+    }
+
+    /**
+     * Returns the point nearest to the given location, or -1 if the tree is
+     * empty.
+     */
+    int nearest(double x, double y) {
+        Best best = new Best();
+        nearest(0, tree.length, true, x, y, best);
+        return best.pos < 0 ? -1 : items[best.pos];
+    }
+
+    private void nearest(int lo, int hi, boolean splitx, double x, double y, Best best) {
+        if (lo >= hi) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        int pos = tree[mid];
+        double dx = points.x(items[pos]) - x;
+        double dy = points.y(items[pos]) - y;
+        double d = dx * dx + dy * dy;
+        if (d < best.dist || (d == best.dist && pos < best.pos)) {
+            best.dist = d;
+            best.pos = pos;
+        }
+
+        double diff = splitx ? -dx : -dy;
+        // points on the split line may be on either side
+        if (diff <= 0) {
+            nearest(lo, mid, !splitx, x, y, best);
+            if (diff * diff <= best.dist) {
+                nearest(mid + 1, hi, !splitx, x, y, best);
+            }
+        } else {
+            nearest(mid + 1, hi, !splitx, x, y, best);
+            if (diff * diff <= best.dist) {
+                nearest(lo, mid, !splitx, x, y, best);
+            }
+        }
+    }
+
+    /**
+     * Returns the {@code k} points nearest to the given location, nearest
+     * first. Returns fewer points if the tree has fewer than {@code k}.
+     */
+    int[] nearest(double x, double y, int k) {
+        PriorityQueue<Found> found = new PriorityQueue<>();
+        if (k > 0) {
+            nearest(0, tree.length, true, x, y, k, found);
+        }
+        int[] result = new int[found.size()];
+        for (int i = result.length - 1; i >= 0; i--) {
+            result[i] = items[found.poll().pos];
+        }
+        return result;
+    }
+
+    private void nearest(int lo, int hi, boolean splitx, double x, double y, int k, PriorityQueue<Found> found) {
+        if (lo >= hi) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        int pos = tree[mid];
+        double dx = points.x(items[pos]) - x;
+        double dy = points.y(items[pos]) - y;
+        Found f = new Found(dx * dx + dy * dy, pos);
+        if (found.size() < k) {
+            found.add(f);
+        } else if (f.compareTo(found.peek()) > 0) {
+            // closer than the farthest found so far
+            found.poll();
+            found.add(f);
+        }
+
+        double diff = splitx ? -dx : -dy;
+        int nlo = diff <= 0 ? lo : mid + 1, nhi = diff <= 0 ? mid : hi;
+        int flo = diff <= 0 ? mid + 1 : lo, fhi = diff <= 0 ? hi : mid;
+        nearest(nlo, nhi, !splitx, x, y, k, found);
+        if (found.size() < k || diff * diff <= found.peek().dist) {
+            nearest(flo, fhi, !splitx, x, y, k, found);
+        }
+    }
+
+    private static class Best {
+
+        double dist = Double.POSITIVE_INFINITY;
+        int pos = -1;
+    }
+
+    /**
+     * Ordered farthest first, so that a priority queue has the farthest point
+     * found so far at its head.
+     */
+    private static class Found implements Comparable<Found> {
+
+        final double dist;
+        final int pos;
+
+        Found(double dist, int pos) {
+            this.dist = dist;
+            this.pos = pos;
+        }
+
+        @Override
+        public int compareTo(Found o) {
+            int c = Double.compare(o.dist, dist);
+            return c != 0 ? c : Integer.compare(o.pos, pos);
+        }
+    }
+
+}
@@ -19,17 +19,23 @@
 package rbptrees.algo;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
-import nl.tue.geometrycore.geometry.linear.LineSegment;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
 import nl.tue.geometrycore.gui.sidepanel.SideTab;
 import nl.tue.geometrycore.util.DoubleUtil;
 import rbptrees.data.ColoredPointSet;
+import rbptrees.data.CrossingOracle;
+import rbptrees.data.Crossings;
+import rbptrees.data.IntList;
 import rbptrees.data.SupportGraph.SupportLink;
 import rbptrees.data.SupportGraph.SupportNode;
 
@@ -37,11 +43,36 @@ import rbptrees.data.SupportGraph.SupportNode;
  *
  * @author wmeulema
  */
-public class LocalSearch extends Algorithm {
+public class LocalSearch extends ThreadableAlgorithm {
 
     private boolean forceTree = true;
     private boolean forcePlanar = true;
     private int iterations = -1;
+    private CandidateMode candidateMode = CandidateMode.COLOR_SHARING;
+    private int nearest = 8;
+    private boolean parallel = false;
+    private double timeLimit = 0;
+    // randomized construction, if not null
+    private Random random = null;
+    private int choices = 1;
+    // moves that may make the support longer, after the first local optimum
+    private Metaheuristic metaheuristic = Metaheuristic.NONE;
+    private int steps = 1000;
+    private double temperature = 0.1;
+    private double cooling = 0.995;
+    private int tenure = 10;
+    private long seed = 0;
+    private ProgressListener listener = null;
+    private long start;
+    private CrossingOracle oracle;
+    private CandidateEdges candidates;
+    // adjacency of the output, and a workspace on it for every thread
+    private TraversalWorkspace traversal;
+    private ThreadLocal<TraversalWorkspace> traversals;
+    private boolean caching = false;
+    private Map<SupportLink, CachedMove> cache;
+    private int cacheHits = 0;
+    private int invalidations = 0;
 
     public LocalSearch() {
         super("LocalSearch");
@@ -53,66 +84,218 @@ public class LocalSearch extends Algorithm {
         this.forcePlanar = forcePlanar;
     }
 
+    /**
+     * Sets which pairs of points are considered as replacement edges.
+     */
+    public void setCandidateMode(CandidateMode candidateMode) {
+        this.candidateMode = candidateMode;
+    }
+
+    /**
+     * Sets the number of nearest points of every color that every point is
+     * paired with in {@link CandidateMode#NEAREST} mode.
+     */
+    public void setNearest(int nearest) {
+        this.nearest = nearest;
+    }
+
+    /**
+     * Sets whether the links are evaluated concurrently in every round. The
+     * result is the same either way.
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * Sets whether the move of every link is kept across rounds, until a
+     * move changes the graph near that link. The result is the same either
+     * way.
+     */
+    public void setCaching(boolean caching) {
+        this.caching = caching;
+    }
+
+    /**
+     * Returns the number of times that the last run used a cached move.
+     */
+    public int getCacheHits() {
+        return cacheHits;
+    }
+
+    /**
+     * Returns the number of cached moves that the last run dropped, because
+     * a move changed the graph near their link.
+     */
+    public int getInvalidations() {
+        return invalidations;
+    }
+
+    @Override
+    public Map<String, Number> getStatistics() {
+        Map<String, Number> stats = new HashMap<>();
+        stats.put("cacheHits", cacheHits);
+        stats.put("invalidations", invalidations);
+        return stats;
+    }
+
+    /**
+     * Sets the wall-clock budget of a run in seconds, 0 for no budget. When
+     * the budget runs out, the search stops and keeps the best support found
+     * so far.
+     */
+    public void setTimeLimit(double timeLimit) {
+        this.timeLimit = timeLimit;
+    }
+
+    /**
+     * Randomizes the construction of the initial support: every point without
+     * all colors is attached to a random one of the given number of nearest
+     * backbone points, rather than the nearest. Pass null for the
+     * deterministic construction.
+     */
+    void setRandomConstruction(Random random, int choices) {
+        this.random = random;
+        this.choices = choices;
+    }
+
+    /**
+     * Sets how the search continues from the first local optimum, see
+     * {@link Metaheuristic}. The search then makes at most the given number of
+     * steps, within the time limit.
+     */
+    public void setMetaheuristic(Metaheuristic metaheuristic, int steps) {
+        this.metaheuristic = metaheuristic;
+        this.steps = steps;
+    }
+
+    /**
+     * Sets the schedule of {@link Metaheuristic#ANNEALING}: the initial
+     * temperature, relative to the average length of a link, and the factor by
+     * which it decreases in every step.
+     */
+    public void setSchedule(double temperature, double cooling) {
+        this.temperature = temperature;
+        this.cooling = cooling;
+    }
+
+    /**
+     * Sets for how many steps of {@link Metaheuristic#TABU} the links that a
+     * step adds or removes may not be removed or added again.
+     */
+    public void setTenure(int tenure) {
+        this.tenure = tenure;
+    }
+
+    /**
+     * Sets the seed for {@link Metaheuristic#ANNEALING}.
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    @Override
+    public void addListener(ProgressListener listener) {
+        if (this.listener == null) {
+            this.listener = listener;
+        } else if (this.listener != listener) {
+            System.err.println("Trying to add multiple listeners to LocalSearch algorithm");
+        }
+    }
+
+    @Override
+    public void removeListener(ProgressListener listener) {
+        if (this.listener == listener) {
+            this.listener = null;
+        }
+    }
+
+    @Override
+    public void setStatus(String text) {
+
+    }
+
     @Override
-    public boolean run() {
+    public boolean runSync() {
+        start = System.nanoTime();
 
         if (!computeMSTheuristic()) {
             System.err.println("This method needs at least one node that is a member of all sets");
+            if (listener != null) {
+                listener.onAbort();
+            }
             return false;
         }
 
+        prepareSearch();
         int rounds = hillClimb();
         //System.out.println("Rounds: " + rounds);
+        if (metaheuristic != Metaheuristic.NONE && !shouldStop()) {
+            escape();
+            rounds += hillClimb();
+        }
+        finishSearch();
 
+        if (listener != null) {
+            listener.onDone(secondsRunning());
+        }
         return true;
     }
 
+    private double secondsRunning() {
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    private boolean outOfTime() {
+        return timeLimit > 0 && secondsRunning() >= timeLimit;
+    }
+
+    /**
+     * Returns whether the search must stop, because the budget ran out or the
+     * listener asks for it. Must only be called from the thread of the run.
+     */
+    private boolean shouldStop() {
+        return outOfTime() || (listener != null && listener.shouldAbort(0, secondsRunning()));
+    }
+
     private boolean computeMSTheuristic() {
 
-        List<SupportNode> intree = new ArrayList();
-        List<SupportNode> outtree = new ArrayList();
+        IntList backbone = new IntList();
         for (ColoredPointSet.ColoredPoint p : input.iterateExact(input.getColors())) {
-            SupportNode n = output.getNodemap().get(p);
-            outtree.add(n);
+            backbone.add(p.getIndex());
         }
 
-        if (outtree.isEmpty()) {
+        if (backbone.isEmpty()) {
             return false;
         }
 
-        intree.add(outtree.remove(0));
+        int[] subset = backbone.toArray();
+        List<SupportNode> vertices = output.getVertices();
+        // backbone in the order in which it was built
+        int[] intree = new int[subset.length];
+        intree[0] = subset[0];
 
-        while (outtree.size() > 0) {
-
-            SupportNode bin = null, bout = null;
-            double dist = Double.POSITIVE_INFINITY;
-            for (SupportNode in : intree) {
-                for (SupportNode out : outtree) {
-                    if (in.squaredDistanceTo(out) < dist) {
-                        dist = in.squaredDistanceTo(out);
-                        bin = in;
-                        bout = out;
-                    }
-                }
-            }
-
-            outtree.remove(bout);
-            intree.add(bout);
+        int[] tree = new EuclideanMST(getPackedInput(), subset).compute(subset[0]);
+        for (int i = 0; i < tree.length; i += 2) {
+            SupportNode bin = vertices.get(tree[i]);
+            SupportNode bout = vertices.get(tree[i + 1]);
+            intree[i / 2 + 1] = bout.getGraphIndex();
 
             output.addEdge(bin, bout);
         }
 
+        KdTree nearest = new KdTree(getPackedInput(), intree);
+
         for (ColoredPointSet.ColoredPoint cp : input.iterate((ColoredPointSet.ColoredPoint p) -> {
-            return p.colors.size() < input.getColors().size();
+            return p.getColorCount() < input.getColors().size();
         })) {
             SupportNode n = output.getNodemap().get(cp);
-            SupportNode best = null;
-            double dist = Double.POSITIVE_INFINITY;
-            for (SupportNode p : intree) {
-                if (n.squaredDistanceTo(p) < dist) {
-                    dist = n.squaredDistanceTo(p);
-                    best = p;
-                }
+            SupportNode best;
+            if (random == null) {
+                best = vertices.get(nearest.nearest(cp.getIndex()));
+            } else {
+                int[] near = nearest.nearest(cp.getX(), cp.getY(), choices);
+                best = vertices.get(near[random.nextInt(near.length)]);
             }
             output.addEdge(n, best);
         }
@@ -122,11 +305,13 @@ public class LocalSearch extends Algorithm {
 
     private class CandidateEdge {
 
+        final int id;
         final SupportNode a, b;
 
-        CandidateEdge(SupportNode a, SupportNode b) {
-            this.a = a;
-            this.b = b;
+        CandidateEdge(int id) {
+            this.id = id;
+            this.a = output.getVertices().get(candidates.from(id));
+            this.b = output.getVertices().get(candidates.to(id));
         }
 
         double sqrLength() {
@@ -138,13 +323,12 @@ public class LocalSearch extends Algorithm {
         }
 
         List<Integer> getColors() {
-            List<Integer> cols = new ArrayList<>(a.point.colors);
-            cols.retainAll(b.point.colors);
-            return cols;
+            return a.point.getCommonColors(b.point);
         }
 
-        LineSegment geom() {
-            return new LineSegment(a, b);
+        boolean crosses(CandidateEdge other) {
+            return LocalSearch.this.crosses(a.getGraphIndex(), b.getGraphIndex(),
+                    other.a.getGraphIndex(), other.b.getGraphIndex());
         }
 
         @Override
@@ -175,145 +359,143 @@ public class LocalSearch extends Algorithm {
 
     }
 
-    private int hillClimb() {
-        List<CandidateEdge> candidateEdges = new LinkedList();
-
-        for (int i = 0; i < output.getVertices().size(); i++) {
-            SupportNode a = output.getVertices().get(i);
-            for (int j = i + 1; j < output.getVertices().size(); j++) {
-                SupportNode b = output.getVertices().get(j);
-
-                if (!a.isNeighborOf(b)) {
-                    candidateEdges.add(new CandidateEdge(a, b));
+    /**
+     * Branch and bound for the shortest set of bridges that connects all
+     * colors of a removed link, shorter than a given bound. Bridges are
+     * considered in the given order, which must be by increasing length, and
+     * every bridge is first taken and then skipped; the first shortest set in
+     * that order is found. The colors still to connect are a bitmask over the
+     * colors of the link.
+     *
+     * A set of bridges is pruned as soon as it cannot be completed to a set
+     * shorter than the bound: every color still to connect needs one of the
+     * remaining bridges, so the set gets at least as long as the cheapest
+     * remaining bridge of every such color. If planarity is forced, the
+     * bridges that a bridge crosses are determined once, as a bitmask over the
+     * later bridges, when that bridge is first taken.
+     */
+    private class BridgeSearch {
+
+        final List<Bridge> bridges;
+        final int m;
+        final double[] lengths;
+        final long[] masks;
+        // first[c][i] is the first bridge from i on with color bit c, or m
+        final int[][] first;
+        // crossings[i] are the later bridges that bridge i crosses, or null
+        final long[][] crossings;
+        // blocked[d] are the bridges crossing one of the first d taken ones
+        final long[][] blocked;
+        final int[] taken;
+        List<Bridge> best = new ArrayList();
+
+        /**
+         * Prepares the search for bridges that connect the given colors, at
+         * most {@link Long#SIZE}, of which the bridges have some.
+         */
+        BridgeSearch(List<Bridge> bridges, List<Integer> colors) {
+            this.bridges = bridges;
+            this.m = bridges.size();
+            int k = colors.size();
+            if (k > Long.SIZE) {
+                throw new IllegalArgumentException("cannot search bridges for more than " + Long.SIZE + " colors");
+            }
+            this.lengths = new double[m];
+            this.masks = new long[m];
+            for (int i = 0; i < m; i++) {
+                Bridge b = bridges.get(i);
+                lengths[i] = b.ce.length();
+                for (int c : b.cols) {
+                    masks[i] |= 1L << colors.indexOf(c);
+                }
+            }
+            this.first = new int[k][m + 1];
+            for (int c = 0; c < k; c++) {
+                first[c][m] = m;
+                for (int i = m - 1; i >= 0; i--) {
+                    first[c][i] = (masks[i] >>> c & 1) != 0 ? i : first[c][i + 1];
                 }
             }
+            this.crossings = forcePlanar ? new long[m][] : null;
+            this.blocked = forcePlanar ? new long[k + 1][(m + 63) >>> 6] : null;
+            this.taken = new int[k];
         }
 
-        int rounds = 0;
-
-        //System.out.println("Nodes:");
-        for (SupportNode sn : output.getVertices()) {
-            //System.out.println("  " + sn.toString());
-        }
-        //System.out.println("Edges:");
-        for (SupportLink sl : output.getEdges()) {
-            //System.out.println("  " + sl.toString());
+        /**
+         * Returns the length of the shortest set of bridges, which is then
+         * in {@link #best}, if that is shorter than the bound; otherwise the
+         * bound, and {@link #best} is empty.
+         */
+        double run(double bound) {
+            int k = first.length;
+            return search(0, 0, 0, k == 64 ? -1L : (1L << k) - 1, bound);
         }
-        //System.out.println("Candidates:");
-        for (CandidateEdge ce : candidateEdges) {
-            //System.out.println("  " + ce);
-        }
-
-        while (iterations < 0 || rounds < iterations) {
 
-            //System.out.println("Testing " + rounds);
-            SupportLink take_out = null;
-            List<Bridge> add_back = null;
-            double improvement = DoubleUtil.EPS;
+        private double search(int index, int depth, double length, long remaining, double bestLength) {
 
-            for (SupportLink link : output.getEdges()) {
-
-                //System.out.println("Candidates::" + candidateEdges.size());
-                double len = link.getGeometry().length();
-                //System.out.println("  " + link);
-                if (len < improvement) {
-                    //System.out.println("    Too long");
-                    continue;
+            // found a new solution
+            if (remaining == 0) {
+                best = new ArrayList();
+                for (int d = 0; d < depth; d++) {
+                    best.add(bridges.get(taken[d]));
                 }
+                return length;
+            }
 
-                List<Integer> colors = link.getColors();
-                List<Bridge> bridgingEdges = new ArrayList();
-                Iterator<Integer> it = colors.iterator();
-                while (it.hasNext()) {
-                    int c = it.next();
-
-                    if (checkConnectivity(c, link, bridgingEdges, candidateEdges)) {
-                        it.remove();
-                    }
-
+            // bound, and skip the bridges without a color still to connect
+            int next = m;
+            double needed = 0;
+            for (long r = remaining; r != 0; r &= r - 1) {
+                int i = first[Long.numberOfTrailingZeros(r)][index];
+                if (i == m) {
+                    // ran out of options
+                    return bestLength;
                 }
+                next = Math.min(next, i);
+                needed = Math.max(needed, lengths[i]);
+            }
+            if (length + needed >= bestLength) {
+                return bestLength;
+            }
 
-                //System.out.println("Bridges::" + bridgingEdges.size());
-                if (colors.isEmpty()) {
-                    //System.out.println("    No colors");
-                    // no colors need to be fixed!
-                    improvement = len;
-                    take_out = link;
-                    add_back = new ArrayList();
-
-                } else if (!bridgingEdges.isEmpty()) {
-                    // some colors need to be fixed and we have options
-
-                    if (forceTree) {
-                        Iterator<Bridge> itb = bridgingEdges.iterator();
-                        while (itb.hasNext()) {
-                            Bridge b = itb.next();
-                            if (b.cols.size() != colors.size()) {
-                                itb.remove();
-                                candidateEdges.add(b.ce);
-                            }
-                        }
-                    }
-
-                    Collections.sort(bridgingEdges);
-
-                    List<Bridge> replacements = new ArrayList();
-                    double replacement_length = findBestReplacement(bridgingEdges, 0, new ArrayList(), 0, colors, replacements, len - improvement);
-
-                    if (!replacements.isEmpty()) {
-                        //System.out.println("    Replacement of " + replacement_length);
-                        for (Bridge b : replacements) {
-                            //System.out.println("      " + b);
-                        }
-                        improvement = len - replacement_length;
-                        take_out = link;
-                        add_back = replacements;
-                    } else {
-                        //System.out.println("    No replacement beats current best");
+            // branch
+            if (!forcePlanar || (blocked[depth][next >>> 6] >>> next & 1) == 0) {
+                taken[depth] = next;
+                if (forcePlanar) {
+                    long[] cross = crossingsOf(next);
+                    for (int w = 0; w < cross.length; w++) {
+                        blocked[depth + 1][w] = blocked[depth][w] | cross[w];
                     }
-                } else {
-                    //System.out.println("    Nothing");
                 }
-
-                //System.out.println("Bridges::" + bridgingEdges.size());
-                for (Bridge b : bridgingEdges) {
-                    candidateEdges.add(b.ce);
-                }
-                //System.out.println("Candidates::" + candidateEdges.size());
-
-            }
-
-            if (take_out == null) {
-                break;
+                bestLength = search(next + 1, depth + 1, length + lengths[next], remaining & ~masks[next], bestLength);
             }
 
-            rounds++;
+            return search(next + 1, depth, length, remaining, bestLength);
+        }
 
-            Iterator<CandidateEdge> it = candidateEdges.iterator();
-            while (it.hasNext()) {
-                CandidateEdge ce = it.next();
-                boolean contains = false;
-                for (Bridge b : add_back) {
-                    if (b.ce == ce) {
-                        contains = true;
-                        break;
+        private long[] crossingsOf(int i) {
+            if (crossings[i] == null) {
+                long[] cross = new long[(m + 63) >>> 6];
+                CandidateEdge ce = bridges.get(i).ce;
+                for (int j = i + 1; j < m; j++) {
+                    CandidateEdge other = bridges.get(j).ce;
+                    if (other.a == ce.a || other.b == ce.a || other.a == ce.b || other.b == ce.b) {
+                        continue;
+                    }
+                    if (ce.crosses(other)) {
+                        cross[j >>> 6] |= 1L << j;
                     }
                 }
-                if (contains) {
-                    output.addEdge(ce.a, ce.b);
-                    it.remove();
-                }
+                crossings[i] = cross;
             }
-
-            output.removeEdge(take_out);
-            CandidateEdge ce = new CandidateEdge(take_out.getStart(), take_out.getEnd());
-            candidateEdges.add(ce);
-
+            return crossings[i];
         }
-
-        return rounds;
     }
 
+    /**
+     * Same search as {@link BridgeSearch}, on lists of colors, for links that
+     * have more colors than fit in a bitmask.
+     */
     private double findBestReplacement(List<Bridge> bridges, int index,
             List<Bridge> currSolution, double currLength, List<Integer> colorsToStillConnect,
             List<Bridge> bestSolution, double bestLength) {
@@ -345,12 +527,11 @@ public class LocalSearch extends Algorithm {
         if (!cols.isEmpty()) {
             boolean allow = true;
             if (forcePlanar) {
-                LineSegment ls = b.ce.geom();
                 for (Bridge curr : currSolution) {
                     if (curr.ce.a == b.ce.a || curr.ce.b == b.ce.a || curr.ce.a == b.ce.b || curr.ce.b == b.ce.b) {
                         continue;
                     }
-                    if (!curr.ce.geom().intersect(ls).isEmpty()) {
+                    if (curr.ce.crosses(b.ce)) {
                         allow = false;
                         break;
                     }
@@ -367,86 +548,615 @@ public class LocalSearch extends Algorithm {
         }
 
         return findBestReplacement(bridges, index + 1, currSolution, currLength, colorsToStillConnect, bestSolution, bestLength);
+    }
+
+    /**
+     * Removal of a link, together with the bridges that replace it.
+     */
+    private class Move {
+
+        final SupportLink link;
+        final List<Bridge> bridges;
+        final double improvement;
 
+        Move(SupportLink link, List<Bridge> bridges, double improvement) {
+            this.link = link;
+            this.bridges = bridges;
+            this.improvement = improvement;
+        }
     }
 
-    private boolean checkConnectivity(int color, SupportLink exclude, List<Bridge> bridges, List<CandidateEdge> candidateEdges) {
+    /**
+     * Move of a link, kept across rounds, with what it was derived from: the
+     * candidates that were bridges and those that crossed the graph. A move
+     * that is found does not depend on the improvement it had to beat; the
+     * absence of a move only holds for that improvement and higher ones.
+     */
+    private class CachedMove {
+
+        final double threshold;
+        Move move = null;
+        Collection<Integer> bridges = Collections.emptySet();
+        Collection<Integer> crossing = Collections.emptySet();
+
+        CachedMove(double threshold) {
+            this.threshold = threshold;
+        }
 
-        //System.out.println("      TC " + color);
-        Set<SupportNode> visited = new HashSet();
+        boolean covers(double improvement) {
+            return move != null || threshold <= improvement;
+        }
+    }
+
+    private void prepareSearch() {
+        oracle = forcePlanar ? input.getCrossingOracle() : null;
+        candidates = CandidateEdges.create(candidateMode, input, getPackedInput(), nearest);
+        traversal = new TraversalWorkspace(input);
+        traversal.load(output);
+        traversals = ThreadLocal.withInitial(traversal::fork);
+        cache = caching ? new HashMap() : null;
+        cacheHits = 0;
+        invalidations = 0;
+    }
+
+    private void finishSearch() {
+        oracle = null;
+        candidates = null;
+        traversal = null;
+        traversals = null;
+        cache = null;
+    }
+
+    private int hillClimb() {
+        int rounds = 0;
 
-        Queue<SupportNode> q = new LinkedList();
+        //System.out.println("Nodes:");
+        for (SupportNode sn : output.getVertices()) {
+            //System.out.println("  " + sn.toString());
+        }
+        //System.out.println("Edges:");
+        for (SupportLink sl : output.getEdges()) {
+            //System.out.println("  " + sl.toString());
+        }
+        //System.out.println("Candidates::" + candidates.size());
 
-        q.add(exclude.getStart());
-        visited.add(exclude.getStart());
+        // the output is a valid support between rounds, so the search can
+        // stop after any of them
+        roundloop:
+        while ((iterations < 0 || rounds < iterations) && !shouldStop()) {
 
-        //System.out.println("      +v " + exclude.getStart().getGraphIndex());
-        while (q.size() > 0) {
-            SupportNode n = q.poll();
+            //System.out.println("Testing " + rounds);
+            long roundStart = System.nanoTime();
+            Move best = null;
+            double improvement = DoubleUtil.EPS;
 
-            for (SupportLink l : n.getEdges()) {
-                if (l == exclude) {
-                    continue;
+            if (parallel) {
+                // evaluate every link on its own, against the same graph, and
+                // take the move that the sequential loop below would take
+                Move[] moves = evaluateAll();
+                if (moves == null) {
+                    break;
                 }
-                SupportNode f = l.getOtherVertex(n);
-                if (!visited.contains(f) && f.point.colors.contains(color)) {
-                    //System.out.println("      +v " + f.getGraphIndex());
-                    visited.add(f);
-                    q.add(f);
+                for (Move move : moves) {
+                    if (beats(move, improvement)) {
+                        best = move;
+                        improvement = move.improvement;
+                    }
                 }
+            } else {
+                for (SupportLink link : output.getEdges()) {
+                    if (shouldStop()) {
+                        break roundloop;
+                    }
+                    Move move = evaluateCached(link, improvement);
+                    if (beats(move, improvement)) {
+                        best = move;
+                        improvement = move.improvement;
+                    }
+                }
+            }
+
+            if (best == null) {
+                break;
+            }
+
+            rounds++;
+            apply(best);
+
+            if (listener != null) {
+                double seconds = Math.max((System.nanoTime() - roundStart) / 1e9, 1e-9);
+                listener.onImprovement(output.getTotalLength(), best.improvement / seconds, secondsRunning());
+            }
+        }
+
+        return rounds;
+    }
+
+    /**
+     * Removes the link of the move and adds its bridges.
+     */
+    private void apply(Move move) {
+        SupportLink take_out = move.link;
+        for (Bridge b : move.bridges) {
+            output.addEdge(b.ce.a, b.ce.b);
+            traversal.addEdge(b.ce.a.getGraphIndex(), b.ce.b.getGraphIndex());
+        }
+
+        output.removeEdge(take_out);
+        traversal.removeEdge(take_out.getStart().getGraphIndex(), take_out.getEnd().getGraphIndex());
+        // the removed link may not have been a candidate yet, but it
+        // should be able to come back
+        candidates.add(take_out.getStart().getGraphIndex(), take_out.getEnd().getGraphIndex());
+
+        if (cache != null) {
+            invalidate(move);
+        }
+    }
+
+    /**
+     * Returns the links of the output, as consecutive pairs of graph indices.
+     */
+    private int[] snapshot() {
+        List<SupportLink> links = output.getEdges();
+        int[] edges = new int[2 * links.size()];
+        for (int i = 0; i < links.size(); i++) {
+            edges[2 * i] = links.get(i).getStart().getGraphIndex();
+            edges[2 * i + 1] = links.get(i).getEnd().getGraphIndex();
+        }
+        return edges;
+    }
+
+    /**
+     * Replaces the links of the output by those of a snapshot.
+     */
+    private void restore(int[] edges) {
+        List<SupportNode> vertices = output.getVertices();
+        while (output.getEdges().size() > 0) {
+            output.removeEdge(output.getEdges().get(output.getEdges().size() - 1));
+        }
+        for (int i = 0; i < edges.length; i += 2) {
+            output.addEdge(vertices.get(edges[i]), vertices.get(edges[i + 1]));
+        }
+        traversal.load(output);
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Continues from a local optimum with moves that may make the support
+     * longer, as chosen by the metaheuristic, for the given number of steps
+     * or until the search must stop. Afterwards, the output is the shortest
+     * support that was seen.
+     */
+    private void escape() {
+        Random rand = new Random(seed);
+        int[] best = snapshot();
+        double bestLength = output.getTotalLength();
+        double reportedAt = secondsRunning();
+        double reportedLength = bestLength;
+        // step until which adding or removing a pair of points is tabu
+        Map<Long, Integer> tabu = new HashMap();
+        double temp = temperature * output.getTotalLength() / Math.max(1, output.getEdges().size());
+
+        for (int step = 0; step < steps && !shouldStop(); step++) {
+            Move move;
+            if (metaheuristic == Metaheuristic.ANNEALING) {
+                List<SupportLink> links = output.getEdges();
+                if (links.isEmpty()) {
+                    // a single point, or all colors on one point: nothing to move
+                    break;
+                }
+                move = evaluate(links.get(rand.nextInt(links.size())), Double.NEGATIVE_INFINITY, null);
+                if (move != null && move.improvement < 0 && rand.nextDouble() >= Math.exp(move.improvement / temp)) {
+                    move = null;
+                }
+                temp *= cooling;
+            } else {
+                move = bestAllowedMove(tabu, step, output.getTotalLength() - bestLength);
+                if (move != null) {
+                    tabu.put(key(move.link.getStart(), move.link.getEnd()), step + tenure);
+                    for (Bridge b : move.bridges) {
+                        tabu.put(key(b.ce.a, b.ce.b), step + tenure);
+                    }
+                }
+            }
+            if (move == null) {
+                continue;
+            }
+
+            apply(move);
+            if (output.getTotalLength() < bestLength - DoubleUtil.EPS) {
+                best = snapshot();
+                bestLength = output.getTotalLength();
+                if (listener != null) {
+                    double now = secondsRunning();
+                    listener.onImprovement(bestLength, (reportedLength - bestLength) / Math.max(now - reportedAt, 1e-9), now);
+                    reportedAt = now;
+                    reportedLength = bestLength;
+                }
+            }
+        }
+
+        if (output.getTotalLength() > bestLength) {
+            restore(best);
+        }
+    }
+
+    /**
+     * Returns the move with the largest improvement, possibly negative, that
+     * neither removes nor adds a link that is tabu; unless the move gives a
+     * support shorter than any before, which is {@code gap} shorter than the
+     * current one.
+     */
+    private Move bestAllowedMove(Map<Long, Integer> tabu, int step, double gap) {
+        List<SupportLink> links = output.getEdges();
+        Move[] moves = new Move[links.size()];
+        IntStream range = IntStream.range(0, links.size());
+        (parallel ? range.parallel() : range).forEach((int i) -> {
+            moves[i] = evaluate(links.get(i), Double.NEGATIVE_INFINITY, null);
+        });
+
+        Move best = null;
+        for (Move move : moves) {
+            if (move == null || (best != null && move.improvement <= best.improvement)) {
+                continue;
+            }
+            boolean allowed = move.improvement > gap + DoubleUtil.EPS
+                    || !isTabu(tabu, step, move.link.getStart(), move.link.getEnd());
+            for (Bridge b : move.bridges) {
+                allowed = allowed && (move.improvement > gap + DoubleUtil.EPS || !isTabu(tabu, step, b.ce.a, b.ce.b));
             }
+            if (allowed) {
+                best = move;
+            }
+        }
+        return best;
+    }
+
+    private static boolean isTabu(Map<Long, Integer> tabu, int step, SupportNode a, SupportNode b) {
+        Integer until = tabu.get(key(a, b));
+        return until != null && step < until;
+    }
+
+    private static long key(SupportNode a, SupportNode b) {
+        int i = Math.min(a.getGraphIndex(), b.getGraphIndex());
+        int j = Math.max(a.getGraphIndex(), b.getGraphIndex());
+        return ((long) i << 32) | j;
+    }
+
+    /**
+     * Returns whether the move, if any, is taken over a move with the given
+     * improvement that comes earlier in the order of the edges of the graph.
+     */
+    private static boolean beats(Move move, double improvement) {
+        if (move == null) {
+            return false;
+        }
+        // removing a link without replacement ties with the best so far
+        return move.bridges.isEmpty()
+                ? move.improvement >= improvement
+                : move.improvement > improvement;
+    }
+
+    /**
+     * Evaluates the link as {@link #evaluate} does, but uses and fills the
+     * cache if caching is enabled.
+     */
+    private Move evaluateCached(SupportLink link, double improvement) {
+        if (cache == null) {
+            return evaluate(link, improvement, null);
         }
+        CachedMove entry = cache.get(link);
+        if (entry != null && entry.covers(improvement)) {
+            cacheHits++;
+            return entry.move;
+        }
+        entry = new CachedMove(improvement);
+        entry.move = evaluate(link, improvement, entry);
+        cache.put(link, entry);
+        return entry.move;
+    }
 
-        boolean connected = true;
-        for (SupportNode n : output.getVertices()) {
-            if (n.point.colors.contains(color) && !visited.contains(n)) {
-                connected = false;
+    /**
+     * Evaluates all links concurrently against the minimum improvement, in the
+     * order of the edges of the graph. Links with a cached move are not
+     * evaluated again. Returns null if the budget ran out first.
+     */
+    private Move[] evaluateAll() {
+        List<SupportLink> links = output.getEdges();
+        Move[] moves = new Move[links.size()];
+        CachedMove[] entries = new CachedMove[links.size()];
+        IntList todo = new IntList();
+        for (int i = 0; i < links.size(); i++) {
+            CachedMove entry = cache == null ? null : cache.get(links.get(i));
+            if (entry != null && entry.covers(DoubleUtil.EPS)) {
+                moves[i] = entry.move;
+                cacheHits++;
+            } else {
+                todo.add(i);
             }
         }
 
-        if (!connected) {
+        AtomicBoolean cut = new AtomicBoolean(false);
+        IntStream.range(0, todo.size()).parallel().forEach((int j) -> {
+            if (cut.get() || outOfTime()) {
+                cut.set(true);
+                return;
+            }
+            int i = todo.get(j);
+            entries[i] = cache == null ? null : new CachedMove(DoubleUtil.EPS);
+            moves[i] = evaluate(links.get(i), DoubleUtil.EPS, entries[i]);
+        });
+        if (cut.get()) {
+            return null;
+        }
 
-            //System.out.println("      Not connected");
-            for (Bridge b : bridges) {
-                if (b.ce.a.point.colors.contains(color) && b.ce.b.point.colors.contains(color) && visited.contains(b.ce.a) != visited.contains(b.ce.b)) {
-                    b.cols.add(color);
+        if (cache != null) {
+            for (int j = 0; j < todo.size(); j++) {
+                int i = todo.get(j);
+                entries[i].move = moves[i];
+                cache.put(links.get(i), entries[i]);
+            }
+        }
+        return moves;
+    }
+
+    /**
+     * Returns whether segments {@code ij} and {@code kl} cross, where the
+     * arguments are point indices. Segments that share an endpoint never
+     * cross. Uses the crossing oracle if the input has one, and tests the
+     * segments directly otherwise.
+     */
+    private boolean crosses(int i, int j, int k, int l) {
+        if (oracle != null) {
+            return oracle.crosses(i, j, k, l);
+        }
+        if (i == k || i == l || j == k || j == l) {
+            return false;
+        }
+        List<SupportNode> vertices = output.getVertices();
+        return Crossings.intersect(vertices.get(i), vertices.get(j), vertices.get(k), vertices.get(l));
+    }
+
+    /**
+     * Drops the cached moves that the given move, just applied, may have
+     * changed. A move of a link depends on the components of the colors of
+     * the link, which only change by links with one of those colors; and, if
+     * planarity is forced, on which candidates cross the graph.
+     */
+    private void invalidate(Move applied) {
+        cache.remove(applied.link);
+
+        Set<Integer> colors = new HashSet(applied.link.getColors());
+        for (Bridge b : applied.bridges) {
+            colors.addAll(b.ce.getColors());
+        }
+        int ra = applied.link.getStart().getGraphIndex();
+        int rb = applied.link.getEnd().getGraphIndex();
+
+        Iterator<Map.Entry<SupportLink, CachedMove>> it = cache.entrySet().iterator();
+        entryloop:
+        while (it.hasNext()) {
+            Map.Entry<SupportLink, CachedMove> next = it.next();
+            CachedMove entry = next.getValue();
+            for (int c : next.getKey().getColors()) {
+                if (colors.contains(c)) {
+                    it.remove();
+                    invalidations++;
+                    continue entryloop;
+                }
+            }
+            if (!forcePlanar) {
+                continue;
+            }
+            // a new link may block a bridge
+            for (int id : entry.bridges) {
+                for (Bridge b : applied.bridges) {
+                    if (crosses(candidates.from(id), candidates.to(id),
+                            b.ce.a.getGraphIndex(), b.ce.b.getGraphIndex())) {
+                        it.remove();
+                        invalidations++;
+                        continue entryloop;
+                    }
+                }
+            }
+            // the removed link may have been the only link blocking a candidate
+            List<SupportNode> vertices = output.getVertices();
+            for (int id : entry.crossing) {
+                int ca = candidates.from(id), cb = candidates.to(id);
+                if (crosses(ca, cb, ra, rb)
+                        && !output.crossesAnyEdge(vertices.get(ca), vertices.get(cb), next.getKey())) {
+                    it.remove();
+                    invalidations++;
+                    continue entryloop;
                 }
             }
+        }
+    }
+
+    /**
+     * Evaluates removing the given link. Returns the move, if it improves the
+     * total length by more than {@code improvement}, but at least
+     * {@link DoubleUtil#EPS}; or null otherwise. Does not modify the graph, so
+     * several links can be evaluated concurrently. If an entry is given, it
+     * receives what the evaluation depends on.
+     */
+    private Move evaluate(SupportLink link, double improvement, CachedMove entry) {
+
+        double len = link.getGeometry().length();
+        //System.out.println("  " + link);
+        if (len < improvement) {
+            //System.out.println("    Too long");
+            return null;
+        }
+
+        List<Integer> colors = link.getColors();
+        List<Bridge> bridgingEdges = new ArrayList();
+        Map<Integer, Bridge> bridgeOf = new HashMap();
+        Set<Integer> crossing = new HashSet();
+        Iterator<Integer> it = colors.iterator();
+        while (it.hasNext()) {
+            int c = it.next();
+
+            if (checkConnectivity(c, link, bridgingEdges, bridgeOf, crossing)) {
+                it.remove();
+            }
+
+        }
+        if (entry != null) {
+            entry.bridges = bridgeOf.keySet();
+            entry.crossing = crossing;
+        }
 
-            Iterator<CandidateEdge> it = candidateEdges.iterator();
-            mainloop:
-            while (it.hasNext()) {
-                CandidateEdge ce = it.next();
-                //System.out.println("      Testing " + ce);
-                if (ce.a.point.colors.contains(color) && ce.b.point.colors.contains(color) && visited.contains(ce.a) != visited.contains(ce.b)) {
-                    // different components!
-
-                    //System.out.println("        diff");
-                    if (forcePlanar) {
-                        // check for intersections with current tree
-                        for (SupportLink sl : output.getEdges()) {
-                            if (sl == exclude) {
-                                continue;
-                            }
-                            if (sl.getStart() == ce.a || sl.getEnd() == ce.a || sl.getStart() == ce.b || sl.getEnd() == ce.b) {
-                                continue;
-                            }
-                            if (!sl.toGeometry().intersect(ce.geom()).isEmpty()) {
-                                //System.out.println("          int");
-                                // intersection, not a valid bridge
-                                continue mainloop;
-                            }
-                        }
+        //System.out.println("Bridges::" + bridgingEdges.size());
+        if (colors.isEmpty()) {
+            //System.out.println("    No colors");
+            // no colors need to be fixed!
+            return new Move(link, new ArrayList(), len);
+
+        } else if (!bridgingEdges.isEmpty()) {
+            // some colors need to be fixed and we have options
+
+            if (forceTree) {
+                Iterator<Bridge> itb = bridgingEdges.iterator();
+                while (itb.hasNext()) {
+                    Bridge b = itb.next();
+                    if (b.cols.size() != colors.size()) {
+                        itb.remove();
                     }
+                }
+            }
 
-                    //System.out.println("          bridge");
-                    it.remove();
-                    bridges.add(new Bridge(ce, color));
+            Collections.sort(bridgingEdges);
+
+            double replacement_length;
+            List<Bridge> replacements;
+            if (colors.size() <= Long.SIZE) {
+                BridgeSearch search = new BridgeSearch(bridgingEdges, colors);
+                replacement_length = search.run(len - improvement);
+                replacements = search.best;
+            } else {
+                // too many colors for a bitmask
+                replacements = new ArrayList();
+                replacement_length = findBestReplacement(bridgingEdges, 0, new ArrayList(), 0, colors, replacements, len - improvement);
+            }
+
+            if (!replacements.isEmpty()) {
+                //System.out.println("    Replacement of " + replacement_length);
+                for (Bridge b : replacements) {
+                    //System.out.println("      " + b);
                 }
+                return new Move(link, replacements, len - replacement_length);
+            } else {
+                //System.out.println("    No replacement beats current best");
+            }
+        } else {
+            //System.out.println("    Nothing");
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether the given color stays connected without the excluded
+     * link. If not, the candidates that reconnect it are added to the bridges,
+     * or get the color if they are bridges already. Candidates that cross the
+     * support are collected in {@code crossing}, so they are tested only once.
+     */
+    private boolean checkConnectivity(int color, SupportLink exclude, List<Bridge> bridges,
+            Map<Integer, Bridge> bridgeOf, Set<Integer> crossing) {
+
+        //System.out.println("      TC " + color);
+        TraversalWorkspace ws = traversals.get();
+        int s = exclude.getStart().getGraphIndex(), t = exclude.getEnd().getGraphIndex();
+        if (ws.search(s, color, s, t, -1) == input.size(color)) {
+            return true;
+        }
+
+        //System.out.println("      Not connected");
+        List<SupportNode> vertices = output.getVertices();
+        IntList ids = candidates.ofColor(color);
+        for (int i = 0; i < ids.size(); i++) {
+            int id = ids.get(i);
+            SupportNode a = vertices.get(candidates.from(id));
+            SupportNode b = vertices.get(candidates.to(id));
+            if (!a.point.hasColor(color) || !b.point.hasColor(color) || ws.visited(a.getGraphIndex()) == ws.visited(b.getGraphIndex())) {
+                continue;
+            }
+            // different components!
+
+            Bridge bridge = bridgeOf.get(id);
+            if (bridge != null) {
+                bridge.cols.add(color);
+                continue;
+            }
+            if (crossing.contains(id) || a.isNeighborOf(b)) {
+                continue;
             }
+            if (forcePlanar && output.crossesAnyEdge(a, b, exclude)) {
+                //System.out.println("          int");
+                // intersection with current tree, not a valid bridge
+                crossing.add(id);
+                continue;
+            }
+
+            //System.out.println("          bridge");
+            bridge = new Bridge(new CandidateEdge(id), color);
+            bridgeOf.put(id, bridge);
+            bridges.add(bridge);
         }
 
-        return connected;
+        return false;
+    }
+
+    /**
+     * Pairs of points that are considered as replacement edges. Only pairs
+     * with a common color can ever replace an edge, so
+     * {@link #COLOR_SHARING} gives the same result as {@link #EXHAUSTIVE}.
+     * The other modes consider fewer pairs and may end in a worse optimum.
+     */
+    public enum CandidateMode {
+        /**
+         * All pairs of points.
+         */
+        EXHAUSTIVE,
+        /**
+         * All pairs of points with a common color.
+         */
+        COLOR_SHARING,
+        /**
+         * Every point with its nearest points of every color it has.
+         */
+        NEAREST,
+        /**
+         * The edges of the Delaunay triangulation of every color.
+         */
+        DELAUNAY
+    }
+
+    /**
+     * Ways to continue from a local optimum. Both repeatedly apply a move of
+     * the hill climbing, also if that makes the support longer, and keep the
+     * shortest support seen; the hill climbing then continues from there.
+     */
+    public enum Metaheuristic {
+        /**
+         * Stop at the first local optimum.
+         */
+        NONE,
+        /**
+         * Simulated annealing: every step takes the best move of a random
+         * link. A move that makes the support longer by d is accepted with
+         * probability exp(-d / t), where temperature t decreases
+         * geometrically.
+         */
+        ANNEALING,
+        /**
+         * Tabu search: every step takes the best move of all links, where
+         * recently added or removed links may not be removed or added again,
+         * unless that gives the shortest support so far.
+         */
+        TABU
     }
 
     @Override
@@ -457,14 +1167,65 @@ public class LocalSearch extends Algorithm {
         tab.addCheckbox("Force planar", forcePlanar, (e, v) -> {
             forcePlanar = v;
         });
+        tab.addCheckbox("Parallel", parallel, (e, v) -> {
+            parallel = v;
+        });
+        tab.addCheckbox("Cache moves", caching, (e, v) -> {
+            caching = v;
+        });
 
         tab.addIntegerSpinner(iterations, -1, Integer.MAX_VALUE, 1, (e, v) -> {
             iterations = v;
         });
+        tab.addComboBox(Metaheuristic.values(), metaheuristic, (e, v) -> {
+            metaheuristic = v;
+        });
+        tab.makeSplit(2, 2);
+        tab.addLabel("Steps");
+        tab.addIntegerSpinner(steps, 0, Integer.MAX_VALUE, 100, (e, v) -> {
+            steps = v;
+        });
+        tab.makeSplit(2, 2);
+        tab.addLabel("Temperature");
+        tab.addDoubleSpinner(temperature, 0, Double.MAX_VALUE, 0.01, (e, v) -> {
+            temperature = v;
+        });
+        tab.makeSplit(2, 2);
+        tab.addLabel("Cooling");
+        tab.addDoubleSpinner(cooling, 0, 1, 0.001, (e, v) -> {
+            cooling = v;
+        });
+        tab.makeSplit(2, 2);
+        tab.addLabel("Tabu tenure");
+        tab.addIntegerSpinner(tenure, 0, Integer.MAX_VALUE, 1, (e, v) -> {
+            tenure = v;
+        });
+        tab.makeSplit(2, 2);
+        tab.addLabel("Seed");
+        tab.addIntegerSpinner((int) seed, 0, Integer.MAX_VALUE, 1, (e, v) -> {
+            seed = v;
+        });
+
+        tab.makeSplit(2, 2);
+        tab.addLabel("Time limit (s)");
+        tab.addDoubleSpinner(timeLimit, 0, Double.MAX_VALUE, 1, (e, v) -> {
+            timeLimit = v;
+        });
+
+        tab.addComboBox(CandidateMode.values(), candidateMode, (e, v) -> {
+            candidateMode = v;
+        });
+        tab.makeSplit(2, 2);
+        tab.addLabel("Nearest");
+        tab.addIntegerSpinner(nearest, 1, Integer.MAX_VALUE, 1, (e, v) -> {
+            nearest = v;
+        });
     }
 
     @Override
     public String getSolutionIdentifier() {
-        return getName() + (forceTree ? " T" : "") + (forcePlanar ? " P" : "") + (iterations >= 0 ? " " + iterations : "");
+        return getName() + (forceTree ? " T" : "") + (forcePlanar ? " P" : "") + (iterations >= 0 ? " " + iterations : "")
+                + (candidateMode == CandidateMode.NEAREST ? " N" + nearest : candidateMode == CandidateMode.DELAUNAY ? " D" : "")
+                + (metaheuristic == Metaheuristic.ANNEALING ? " SA" : metaheuristic == Metaheuristic.TABU ? " TS" : "");
     }
 }
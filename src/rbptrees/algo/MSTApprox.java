@@ -18,10 +18,10 @@
 
 package rbptrees.algo;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.IntStream;
 import nl.tue.geometrycore.gui.sidepanel.SideTab;
-import rbptrees.data.ColoredPointSet;
+import rbptrees.data.PackedPointSet;
 import rbptrees.data.SupportGraph.SupportNode;
 
 /**
@@ -30,45 +30,39 @@ import rbptrees.data.SupportGraph.SupportNode;
  */
 public class MSTApprox extends Algorithm {
 
+    private boolean parallel = false;
+
     public MSTApprox() {
         super("MSTApprox");
     }
 
+    /**
+     * Sets whether the trees of the colors are computed concurrently. The
+     * result is the same either way.
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
     @Override
     public boolean run() {
-        for (int c : input.getColors()) {
-
-            List<SupportNode> intree = new ArrayList();
-            List<SupportNode> outtree = new ArrayList();
-            for (ColoredPointSet.ColoredPoint p : input.iterateUnion(c)) {
-                SupportNode n = output.getNodemap().get(p);
-                outtree.add(n);
-            }
-
-            if (outtree.isEmpty()) {
-                continue;
-            }
-
-            intree.add(outtree.remove(0));
-
-            while (outtree.size() > 0) {
-
-                SupportNode bin = null, bout = null;
-                double dist = Double.POSITIVE_INFINITY;
-                for (SupportNode in : intree) {
-                    for (SupportNode out : outtree) {
-                        if (in.squaredDistanceTo(out) < dist) {
-                            dist = in.squaredDistanceTo(out);
-                            bin = in;
-                            bout = out;
-                        }
-                    }
-                }
-
-                outtree.remove(bout);
-                intree.add(bout);
-
-                output.addEdge(bin, bout);
+        PackedPointSet packed = getPackedInput();
+        int[] colors = input.getColors().stream().mapToInt((Integer c) -> c).toArray();
+        int[][] trees = new int[colors.length][];
+
+        IntStream range = IntStream.range(0, colors.length);
+        (parallel ? range.parallel() : range).forEach((int i) -> {
+            int[] subset = input.indicesOf(colors[i]);
+            trees[i] = subset.length == 0 ? new int[0]
+                    : new EuclideanMST(packed, subset).compute(subset[0]);
+        });
+
+        // add the edges in color order, so that the output does not depend on
+        // the order in which the trees were finished
+        List<SupportNode> vertices = output.getVertices();
+        for (int[] tree : trees) {
+            for (int i = 0; i < tree.length; i += 2) {
+                output.addEdge(vertices.get(tree[i]), vertices.get(tree[i + 1]));
             }
         }
 
@@ -82,7 +76,9 @@ public class MSTApprox extends Algorithm {
 
     @Override
     public void displaySettings(SideTab tab) {
-
+        tab.addCheckbox("Parallel", parallel, (e, v) -> {
+            parallel = v;
+        });
     }
 
 }
@@ -20,9 +20,15 @@ package rbptrees.algo;
 
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.IntStream;
 import javax.swing.JLabel;
 import javax.swing.JTextField;
 import nl.tue.geometrycore.geometry.linear.LineSegment;
@@ -47,6 +53,30 @@ public class MSTIteration extends Algorithm {
     int fixed = 2;
     boolean skiplast = true;
     String custom = "ABA";
+    boolean parallel = false;
+    // cap on the number of tree computations in CONVERGE mode, k * k if 0
+    int maxRecomputations = 0;
+    private int recomputations = 0;
+
+    /**
+     * Sets whether the per-color triangulations are computed concurrently.
+     * The result is the same either way.
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * Returns the number of per-color trees computed by the last run.
+     */
+    public int getRecomputations() {
+        return recomputations;
+    }
+
+    @Override
+    public Map<String, Number> getStatistics() {
+        return Collections.singletonMap("recomputations", recomputations);
+    }
 
     @Override
     public boolean run() {
@@ -88,22 +118,38 @@ public class MSTIteration extends Algorithm {
 
         int[] colors = new int[k];
         TUEdge[][] trees = new TUEdge[k][];
+        EuclideanMST[] msts = new EuclideanMST[k];
         {
             int i = 0;
             for (int c : input.getColors()) {
                 colors[i] = c;
-                int cnt = input.size((ColoredPoint p) -> p.colors.contains(c));
+                int cnt = input.size(c);
                 if (cnt <= 0) {
                     cnt = 1;
                 }
                 trees[i] = new TUEdge[cnt - 1];
+                msts[i] = new EuclideanMST(getPackedInput(), input.indicesOf(c));
                 i++;
             }
         }
 
-        for (int i : indices) {
-            int color = colors[i];
-            computeMST(tu, color, trees[i]);
+        // the trees depend on each other through the tree union, but their
+        // triangulations do not
+        if (parallel) {
+            IntStream.range(0, k).parallel().forEach((int i) -> {
+                msts[i].prepare();
+            });
+        }
+
+        recomputations = 0;
+        if (mode == RepetitionMode.CONVERGE) {
+            converge(tu, colors, trees, msts);
+        } else {
+            for (int i : indices) {
+                int color = colors[i];
+                computeMST(tu, color, trees[i], msts[i]);
+                recomputations++;
+            }
         }
 
         for (TUEdge e : tu.getEdges()) {
@@ -113,7 +159,48 @@ public class MSTIteration extends Algorithm {
         return true;
     }
 
-    private void computeMST(TreeUnion tu, int color, TUEdge[] tree) {
+    /**
+     * Recomputes the tree of a color only when the tree union changed between
+     * two points of that color since its last computation, until no tree
+     * changes anymore or the cap is reached.
+     */
+    private void converge(TreeUnion tu, int[] colors, TUEdge[][] trees, EuclideanMST[] msts) {
+        int k = colors.length;
+        int cap = maxRecomputations > 0 ? maxRecomputations : k * k;
+
+        Map<Integer, Integer> colorIndex = new HashMap();
+        ArrayDeque<Integer> worklist = new ArrayDeque();
+        boolean[] queued = new boolean[k];
+        for (int i = 0; i < k; i++) {
+            colorIndex.put(colors[i], i);
+            worklist.add(i);
+            queued[i] = true;
+        }
+
+        List<TUVertex> vertices = tu.getVertices();
+        while (!worklist.isEmpty() && recomputations < cap) {
+            int i = worklist.poll();
+            queued[i] = false;
+
+            tu.changed.clear();
+            computeMST(tu, colors[i], trees[i], msts[i]);
+            recomputations++;
+
+            for (long key : tu.changed) {
+                ColoredPoint a = vertices.get((int) (key / vertices.size())).node.point;
+                ColoredPoint b = vertices.get((int) (key % vertices.size())).node.point;
+                for (int c : a.getCommonColors(b)) {
+                    int j = colorIndex.get(c);
+                    if (j != i && !queued[j]) {
+                        worklist.add(j);
+                        queued[j] = true;
+                    }
+                }
+            }
+        }
+    }
+
+    private void computeMST(TreeUnion tu, int color, TUEdge[] tree, EuclideanMST mst) {
         //System.out.println("COLOR: " + color);
         //System.out.println("unregistering");
 
@@ -124,43 +211,32 @@ public class MSTIteration extends Algorithm {
             tu.unregister(e);
         }
 
-        List<TUVertex> intree = new ArrayList();
-        List<TUVertex> outtree = new ArrayList();
-        for (ColoredPoint p : input.iterateUnion(color)) {
-            TUVertex n = tu.cpmap.get(p);
-            outtree.add(n);
-        }
-
-        if (outtree.isEmpty()) {
+        int[] subset = input.indicesOf(color);
+        if (subset.length == 0) {
             return;
         }
 
-        intree.add(outtree.remove(outtree.size() - 1));
-
-        //System.out.println("making tree");
-        int i = 0;
-        while (outtree.size() > 0) {
-
-            TUVertex bin = null, bout = null;
-            double dist = Double.POSITIVE_INFINITY;
-            for (TUVertex in : intree) {
-                for (TUVertex out : outtree) {
-                    double d = tu.distance(in, out);
-                    if (d < dist) {
-                        dist = d;
-                        bin = in;
-                        bout = out;
-                    }
+        // edges of the other trees can be reused at no cost
+        mst.clearFreeEdges();
+        List<TUVertex> vertices = tu.getVertices();
+        for (int p : subset) {
+            for (TUEdge e : vertices.get(p).getEdges()) {
+                TUVertex q = e.getOtherVertex(vertices.get(p));
+                if (p < q.getGraphIndex() && q.node.point.hasColor(color)) {
+                    mst.addFreeEdge(p, q.getGraphIndex());
                 }
             }
+        }
 
-            outtree.remove(bout);
-            intree.add(bout);
+        //System.out.println("making tree");
+        int[] edges = mst.compute(subset[subset.length - 1]);
+        for (int i = 0; i < edges.length; i += 2) {
+            TUVertex bin = vertices.get(edges[i]);
+            TUVertex bout = vertices.get(edges[i + 1]);
 
-            tree[i] = tu.register(bin, bout);
+            tree[i / 2] = tu.register(bin, bout);
 
             //System.out.println("  adding " + bin.getGraphIndex() + " - " + bout.getGraphIndex());
-            i++;
         }
     }
 
@@ -170,7 +246,7 @@ public class MSTIteration extends Algorithm {
     }
 
     public enum RepetitionMode {
-        AUTO, FIXED, CUSTOM
+        AUTO, FIXED, CUSTOM, CONVERGE
     }
 
     @Override
@@ -188,6 +264,15 @@ public class MSTIteration extends Algorithm {
         tab.addCheckbox("Skip very last", skiplast, (e, v) -> {
             skiplast = v;
         });
+        tab.addCheckbox("Parallel", parallel, (e, v) -> {
+            parallel = v;
+        });
+
+        tab.makeSplit(2, 2);
+        tab.addLabel("Max recomputations");
+        tab.addIntegerSpinner(maxRecomputations, 0, Integer.MAX_VALUE, 1, (e, v) -> {
+            maxRecomputations = v;
+        });
 
         final JLabel customLabel = tab.addLabel("Custom: " + custom);
         final JTextField customText = tab.addTextField(custom);
@@ -217,6 +302,8 @@ public class MSTIteration extends Algorithm {
     private class TreeUnion extends SimpleGraph<LineSegment, TUVertex, TUEdge> {
 
         HashMap<ColoredPoint, TUVertex> cpmap;
+        // pairs of vertices of which the edge appeared or disappeared
+        Set<Long> changed = new HashSet();
 
         @Override
         public TUVertex createVertex(double x, double y) {
@@ -228,18 +315,11 @@ public class MSTIteration extends Algorithm {
             return new TUEdge();
         }
 
-        public double distance(TUVertex a, TUVertex b) {
-            if (a.isNeighborOf(b)) {
-                return 0;
-            } else {
-                return a.squaredDistanceTo(b);
-            }
-        }
-
         public void unregister(TUEdge edge) {
             edge.cnt--;
             if (edge.cnt == 0) {
                 //System.out.println("  remove " + edge.getStart().getGraphIndex() + " - " + edge.getEnd().getGraphIndex());
+                toggle(edge.getStart(), edge.getEnd());
                 removeEdge(edge);
             } else {
                 //System.out.println("  keep " + edge.getStart().getGraphIndex() + " - " + edge.getEnd().getGraphIndex());
@@ -248,9 +328,22 @@ public class MSTIteration extends Algorithm {
 
         public TUEdge register(TUVertex a, TUVertex b) {
             TUEdge e = addEdge(a, b, new LineSegment(a.clone(), b.clone()));
+            if (e.cnt == 0) {
+                toggle(a, b);
+            }
             e.cnt++;
             return e;
         }
+
+        private void toggle(TUVertex a, TUVertex b) {
+            int n = getVertices().size();
+            int i = Math.min(a.getGraphIndex(), b.getGraphIndex());
+            int j = Math.max(a.getGraphIndex(), b.getGraphIndex());
+            long key = (long) i * n + j;
+            if (!changed.remove(key)) {
+                changed.add(key);
+            }
+        }
     }
 
     private class TUVertex extends SimpleVertex<LineSegment, TUVertex, TUEdge> {
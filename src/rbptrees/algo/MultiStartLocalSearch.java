@@ -0,0 +1,313 @@
+/*
+ * This file is part of SPSSH.
+ *
+ * SPSSH is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPSSH is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPSSH. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package rbptrees.algo;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+import nl.tue.geometrycore.gui.sidepanel.SideTab;
+import rbptrees.data.SupportGraph.SupportLink;
+import rbptrees.data.SupportGraph.SupportNode;
+
+/**
+ * Runs {@link LocalSearch} from several randomized initial supports in
+ * parallel, and keeps the shortest result. The first start uses the
+ * deterministic construction of LocalSearch, so the result is never worse
+ * than a single run; the others attach every point to a random one of its
+ * nearest backbone points.
+ *
+ * The best support found so far is shared between the starts without locking.
+ * If planarity is forced, supports with fewer crossings are preferred, as a
+ * randomized initial support may have crossings that local search does not
+ * remove. Among equally good supports, the one of the earliest start is kept,
+ * so without a time limit the result does not depend on the order in which
+ * the starts finish.
+ */
+public class MultiStartLocalSearch extends ThreadableAlgorithm {
+
+    private boolean forceTree = true;
+    private boolean forcePlanar = true;
+    private int starts = 16;
+    private int choices = 3;
+    private double timeLimit = 0;
+    private long seed = 0;
+    private ProgressListener listener = null;
+
+    private final AtomicReference<Incumbent> incumbent = new AtomicReference<>();
+    private final AtomicInteger completed = new AtomicInteger();
+    private volatile boolean aborted = false;
+    private long start;
+
+    public MultiStartLocalSearch() {
+        super("MultiStartLocalSearch");
+    }
+
+    public MultiStartLocalSearch(boolean forceTree, boolean forcePlanar) {
+        this();
+        this.forceTree = forceTree;
+        this.forcePlanar = forcePlanar;
+    }
+
+    /**
+     * Sets the number of starts.
+     */
+    public void setStarts(int starts) {
+        this.starts = starts;
+    }
+
+    /**
+     * Sets among how many nearest backbone points a point is attached to a
+     * random one, in the randomized starts.
+     */
+    public void setChoices(int choices) {
+        this.choices = choices;
+    }
+
+    /**
+     * Sets the wall-clock budget of a run in seconds, 0 for no budget. Starts
+     * that are running when the budget runs out contribute their best support
+     * so far; starts that did not begin yet are skipped.
+     */
+    public void setTimeLimit(double timeLimit) {
+        this.timeLimit = timeLimit;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Returns the number of starts that contributed a support in the last run.
+     */
+    public int getCompletedStarts() {
+        return completed.get();
+    }
+
+    @Override
+    public void addListener(ProgressListener listener) {
+        if (this.listener == null) {
+            this.listener = listener;
+        } else if (this.listener != listener) {
+            System.err.println("Trying to add multiple listeners to MultiStartLocalSearch algorithm");
+        }
+    }
+
+    @Override
+    public void removeListener(ProgressListener listener) {
+        if (this.listener == listener) {
+            this.listener = null;
+        }
+    }
+
+    @Override
+    public void setStatus(String text) {
+
+    }
+
+    @Override
+    public boolean runSync() {
+        start = System.nanoTime();
+        incumbent.set(null);
+        completed.set(0);
+        aborted = false;
+
+        IntStream.range(0, starts).parallel().forEach((int s) -> {
+            runStart(s);
+        });
+
+        Incumbent best = incumbent.get();
+        incumbent.set(null);
+        if (best == null) {
+            if (listener != null) {
+                listener.onAbort();
+            }
+            return false;
+        }
+
+        List<SupportNode> vertices = output.getVertices();
+        for (int i = 0; i < best.edges.length; i += 2) {
+            output.addEdge(vertices.get(best.edges[i]), vertices.get(best.edges[i + 1]));
+        }
+        //System.out.println("Best start: " + best.start + " of " + completed.get());
+
+        if (listener != null) {
+            listener.onDone(secondsRunning());
+        }
+        return true;
+    }
+
+    private void runStart(int s) {
+        if (shouldStop()) {
+            return;
+        }
+
+        LocalSearch ls = new LocalSearch(forceTree, forcePlanar);
+        if (s > 0) {
+            ls.setRandomConstruction(new Random(seed + s), choices);
+        }
+        ls.addListener(new ProgressListener() {
+            @Override
+            public void onAbort() {
+            }
+
+            @Override
+            public void onDone(double secondsRunning) {
+            }
+
+            @Override
+            public void onProgress(double gap, double secondsRunning) {
+            }
+
+            @Override
+            public boolean shouldAbort(double gap, double secondsRunning) {
+                return shouldStop();
+            }
+        });
+        ls.initialize(input);
+        if (!ls.runSync()) {
+            return;
+        }
+
+        List<SupportLink> links = ls.getOutput().getEdges();
+        int[] edges = new int[2 * links.size()];
+        for (int i = 0; i < links.size(); i++) {
+            edges[2 * i] = links.get(i).getStart().getGraphIndex();
+            edges[2 * i + 1] = links.get(i).getEnd().getGraphIndex();
+        }
+        // local search does not remove crossings of the initial support
+        int crossings = forcePlanar ? ls.getOutput().getIntersectionCount() : 0;
+        offer(new Incumbent(s, crossings, ls.getOutput().getTotalLength(), edges, secondsRunning()));
+        completed.incrementAndGet();
+    }
+
+    /**
+     * Replaces the incumbent by the given support if that is better.
+     */
+    private void offer(Incumbent candidate) {
+        while (true) {
+            Incumbent current = incumbent.get();
+            if (current != null && !candidate.isBetterThan(current)) {
+                return;
+            }
+            if (incumbent.compareAndSet(current, candidate)) {
+                reportImprovement(current, candidate);
+                return;
+            }
+        }
+    }
+
+    private double secondsRunning() {
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    /**
+     * Returns whether the starts must stop, because the budget ran out or the
+     * listener asks for it.
+     */
+    private boolean shouldStop() {
+        if (aborted || (timeLimit > 0 && secondsRunning() >= timeLimit)) {
+            return true;
+        }
+        if (listener != null && pollAbort()) {
+            aborted = true;
+        }
+        return aborted;
+    }
+
+    // the listener is called from one thread at a time
+
+    private synchronized boolean pollAbort() {
+        return listener != null && listener.shouldAbort(0, secondsRunning());
+    }
+
+    private synchronized void reportImprovement(Incumbent previous, Incumbent current) {
+        if (listener == null) {
+            return;
+        }
+        double rate = 0;
+        if (previous != null && current.seconds > previous.seconds) {
+            rate = (previous.length - current.length) / (current.seconds - previous.seconds);
+        }
+        listener.onImprovement(current.length, rate, current.seconds);
+    }
+
+    @Override
+    public String getSolutionIdentifier() {
+        return getName() + (forceTree ? " T" : "") + (forcePlanar ? " P" : "") + " " + starts;
+    }
+
+    @Override
+    public void displaySettings(SideTab tab) {
+        tab.addCheckbox("Force tree", forceTree, (e, v) -> {
+            forceTree = v;
+        });
+        tab.addCheckbox("Force planar", forcePlanar, (e, v) -> {
+            forcePlanar = v;
+        });
+
+        tab.makeSplit(2, 2);
+        tab.addLabel("Starts");
+        tab.addIntegerSpinner(starts, 1, Integer.MAX_VALUE, 1, (e, v) -> {
+            starts = v;
+        });
+        tab.makeSplit(2, 2);
+        tab.addLabel("Choices");
+        tab.addIntegerSpinner(choices, 1, Integer.MAX_VALUE, 1, (e, v) -> {
+            choices = v;
+        });
+        tab.makeSplit(2, 2);
+        tab.addLabel("Time limit (s)");
+        tab.addDoubleSpinner(timeLimit, 0, Double.MAX_VALUE, 1, (e, v) -> {
+            timeLimit = v;
+        });
+        tab.makeSplit(2, 2);
+        tab.addLabel("Seed");
+        tab.addIntegerSpinner((int) seed, 0, Integer.MAX_VALUE, 1, (e, v) -> {
+            seed = v;
+        });
+    }
+
+    private static class Incumbent {
+
+        final int start;
+        final int crossings;
+        final double length;
+        // consecutive pairs of graph indices
+        final int[] edges;
+        final double seconds;
+
+        Incumbent(int start, int crossings, double length, int[] edges, double seconds) {
+            this.start = start;
+            this.crossings = crossings;
+            this.length = length;
+            this.edges = edges;
+            this.seconds = seconds;
+        }
+
+        boolean isBetterThan(Incumbent o) {
+            if (crossings != o.crossings) {
+                return crossings < o.crossings;
+            }
+            return length < o.length || (length == o.length && start < o.start);
+        }
+    }
+
+}
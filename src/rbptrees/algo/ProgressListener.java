@@ -48,4 +48,15 @@ public interface ProgressListener {
      */
     public boolean shouldAbort(double gap, double secondsRunning);
 
+    /**
+     * Called by heuristics that improve a solution step by step, after every
+     * step.
+     *
+     * @param length Total length of the current solution.
+     * @param rate Decrease of the length per second during the last step.
+     * @param secondsRunning Time in seconds that the heuristic is running.
+     */
+    public default void onImprovement(double length, double rate, double secondsRunning) {
+    }
+
 }
@@ -19,16 +19,18 @@
 package rbptrees.algo;
 
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Queue;
+import java.util.Map;
 import java.util.Random;
-import java.util.Set;
-import nl.tue.geometrycore.geometry.linear.LineSegment;
+import java.util.TreeSet;
+import java.util.stream.IntStream;
 import nl.tue.geometrycore.gui.sidepanel.SideTab;
 import nl.tue.geometrycore.util.DoubleUtil;
 import rbptrees.data.ColoredPointSet.ColoredPoint;
+import rbptrees.data.IntList;
+import rbptrees.data.PackedPointSet;
 import rbptrees.data.SupportGraph.SupportLink;
 import rbptrees.data.SupportGraph.SupportNode;
 
@@ -38,9 +40,17 @@ import rbptrees.data.SupportGraph.SupportNode;
  */
 public class SpanningTreeHeuristic extends Algorithm {
 
+    // above this many distance computations, the best center is approximated
+    private static final long EXACT_CENTER_LIMIT = 1L << 26;
+    private static final int CENTER_SAMPLE_SIZE = 1024;
+    private static final int CENTER_SHORTLIST_SIZE = 16;
+
     private SupportLink[] towardsBackbone = null;
+    private TraversalWorkspace traversal = null;
     private final boolean singularstar;
     private final boolean improveTree;
+    private CenterMode centerMode = CenterMode.RANDOM;
+    private long seed = 0;
 
     public SpanningTreeHeuristic(boolean singleStar, boolean improveTree) {
         super(singleStar ? "Star" : (improveTree ? "SpanningTreeStar" : "SpanningTreeHeuristic"));
@@ -48,6 +58,18 @@ public class SpanningTreeHeuristic extends Algorithm {
         this.improveTree = singleStar ? false : improveTree;
     }
 
+    public void setCenterMode(CenterMode centerMode) {
+        this.centerMode = centerMode;
+    }
+
+    /**
+     * Sets the seed for choosing the center of a single star, see
+     * {@link CenterMode}.
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
     @Override
     public boolean run() {
 
@@ -61,12 +83,15 @@ public class SpanningTreeHeuristic extends Algorithm {
             }
 
             if (!improveTree) {
+                traversal = new TraversalWorkspace(input);
+                traversal.load(output);
                 improveTree();
                 for (int c : input.getColors()) {
                     if (!checkConnectivity(c)) {
                         System.err.println("Color " + c + " not connected after heuristic improvements");
                     }
                 }
+                traversal = null;
             }
 
             return true;
@@ -75,52 +100,38 @@ public class SpanningTreeHeuristic extends Algorithm {
 
     private boolean computeMSTheuristic() {
 
-        List<SupportNode> intree = new ArrayList();
-        List<SupportNode> outtree = new ArrayList();
+        IntList backbone = new IntList();
         for (ColoredPoint p : input.iterateExact(input.getColors())) {
-            SupportNode n = output.getNodemap().get(p);
-            towardsBackbone[n.getGraphIndex()] = null;
-            outtree.add(n);
+            towardsBackbone[p.getIndex()] = null;
+            backbone.add(p.getIndex());
         }
 
-        if (outtree.isEmpty()) {
+        if (backbone.isEmpty()) {
             return false;
         }
 
-        intree.add(outtree.remove(0));
+        int[] subset = backbone.toArray();
+        List<SupportNode> vertices = output.getVertices();
+        // backbone in the order in which it was built
+        int[] intree = new int[subset.length];
+        intree[0] = subset[0];
 
-        while (outtree.size() > 0) {
-
-            SupportNode bin = null, bout = null;
-            double dist = Double.POSITIVE_INFINITY;
-            for (SupportNode in : intree) {
-                for (SupportNode out : outtree) {
-                    if (in.squaredDistanceTo(out) < dist) {
-                        dist = in.squaredDistanceTo(out);
-                        bin = in;
-                        bout = out;
-                    }
-                }
-            }
-
-            outtree.remove(bout);
-            intree.add(bout);
+        int[] tree = new EuclideanMST(getPackedInput(), subset).compute(subset[0]);
+        for (int i = 0; i < tree.length; i += 2) {
+            SupportNode bin = vertices.get(tree[i]);
+            SupportNode bout = vertices.get(tree[i + 1]);
+            intree[i / 2 + 1] = bout.getGraphIndex();
 
             output.addEdge(bin, bout);
         }
 
+        KdTree nearest = new KdTree(getPackedInput(), intree);
+
         for (ColoredPoint cp : input.iterate((ColoredPoint p) -> {
-            return p.colors.size() < input.getColors().size();
+            return p.getColorCount() < input.getColors().size();
         })) {
             SupportNode n = output.getNodemap().get(cp);
-            SupportNode best = null;
-            double dist = Double.POSITIVE_INFINITY;
-            for (SupportNode p : intree) {
-                if (n.squaredDistanceTo(p) < dist) {
-                    dist = n.squaredDistanceTo(p);
-                    best = p;
-                }
-            }
+            SupportNode best = vertices.get(nearest.nearest(cp.getIndex()));
             towardsBackbone[n.getGraphIndex()] = output.addEdge(n, best);
         }
 
@@ -128,42 +139,26 @@ public class SpanningTreeHeuristic extends Algorithm {
     }
 
     private boolean checkConnectivity(int color) {
-        Set<SupportNode> visited = new HashSet();
-
-        Queue<SupportNode> q = new LinkedList();
-
-        for (SupportNode n : output.getVertices()) {
-            if (n.point.colors.contains(color)) {
-                q.add(n);
-                visited.add(n);
-                break;
-            }
-        }
-
-        while (q.size() > 0) {
-            SupportNode e = q.poll();
-
-            for (SupportNode f : e.getNeighbors()) {
-                if (f.point.colors.contains(color)) {
-                    if (!visited.contains(f)) {
-                        visited.add(f);
-                        q.add(f);
-                    }
-                }
-            }
-        }
-
-        for (SupportNode n : output.getVertices()) {
-            if (n.point.colors.contains(color) && !visited.contains(n)) {
-                return false;
-            }
+        int[] members = input.indicesOf(color);
+        if (members.length == 0) {
+            return true;
         }
-
-        return true;
+        return traversal.search(members[0], color, -1, -1, -1) == members.length;
     }
 
     @Override
     public void displaySettings(SideTab tab) {
+        if (!singularstar) {
+            return;
+        }
+        tab.addComboBox(CenterMode.values(), centerMode, (e, v) -> {
+            centerMode = v;
+        });
+        tab.makeSplit(2, 2);
+        tab.addLabel("Seed");
+        tab.addIntegerSpinner((int) seed, 0, Integer.MAX_VALUE, 1, (e, v) -> {
+            seed = v;
+        });
     }
 
     @Override
@@ -175,98 +170,178 @@ public class SpanningTreeHeuristic extends Algorithm {
         }
     }
 
+    /**
+     * Repeatedly moves the link of a non-backbone point to a closer point that
+     * has all of its colors, as long as that does not introduce a crossing or
+     * disconnect its first color. Every step applies the largest improvement.
+     *
+     * The support is a tree throughout, which makes the connectivity check
+     * local: provided the color is connected, moving the link of {@code e}
+     * keeps it connected if and only if the new target is not on the side of
+     * {@code e} after removing its current link. If the color is not
+     * connected, the move is tried on the whole color, as it may connect it.
+     * Candidates are evaluated in
+     * order of an upper bound on their improvement, so most of them are never
+     * looked at.
+     */
     private boolean improveTree() {
         boolean somethingatall = false;
-        boolean didsomething;
         List<SupportNode> elts = new ArrayList();
         for (ColoredPoint p : input.iterate((ColoredPoint p) -> {
-            return p.colors.size() < input.getColors().size();
+            return p.getColorCount() < input.getColors().size();
         })) {
             elts.add(output.getNodemap().get(p));
         }
-        List<SupportNode> elts2 = new ArrayList(elts);
 
-        do {
-            didsomething = false;
+        // candidate targets of every point, nearest first; the link of a point
+        // only gets shorter, so targets that are too far now can be dropped
+        List<SupportNode>[] targets = new List[elts.size()];
+        TreeSet<Bound> bounds = new TreeSet();
+        Bound[] bound = new Bound[elts.size()];
+        // the color of every point that a move must keep connected
+        int[] firstColor = new int[elts.size()];
+        for (int pos = 0; pos < elts.size(); pos++) {
+            SupportNode e = elts.get(pos);
+            firstColor[pos] = e.point.colors.iterator().next();
+            double len = towardsBackbone[e.getGraphIndex()].toGeometry().length();
+            List<SupportNode> ts = new ArrayList();
+            for (SupportNode f : elts) {
+                if (f != e && f.point.hasAllColorsOf(e.point) && len - f.distanceTo(e) >= DoubleUtil.EPS) {
+                    ts.add(f);
+                }
+            }
+            // stable, so ties are in input order
+            ts.sort((SupportNode o1, SupportNode o2) -> Double.compare(o1.squaredDistanceTo(e), o2.squaredDistanceTo(e)));
+            targets[pos] = ts;
+            bound[pos] = new Bound(pos, ts.isEmpty() ? Double.NEGATIVE_INFINITY : len - ts.get(0).distanceTo(e));
+            bounds.add(bound[pos]);
+        }
 
-            SupportNode best_src = null;
-            SupportNode best_tar = null;
-            double improvement = DoubleUtil.EPS;
+        Map<Integer, Boolean> connected = new HashMap();
+        for (int c : input.getColors()) {
+            connected.put(c, checkConnectivity(c));
+        }
 
-            for (final SupportNode e : elts2) {
+        while (true) {
 
-                elts.sort((SupportNode o1, SupportNode o2) -> Double.compare(o1.squaredDistanceTo(e), o2.squaredDistanceTo(e)));
+            int best_pos = -1;
+            SupportNode best_tar = null;
+            double improvement = DoubleUtil.EPS;
 
-                for (SupportNode f : elts) {
-                    if (!f.point.colors.containsAll(e.point.colors)) {
-                        continue;
-                    }
+            for (Bound b : bounds) {
+                // ties go to the later point
+                if (b.value < improvement || (b.value == improvement && b.pos < best_pos)) {
+                    break;
+                }
 
-                    if (f == e || f.isNeighborOf(e)) {
-                        continue;
+                SupportNode e = elts.get(b.pos);
+                SupportLink link = towardsBackbone[e.getGraphIndex()];
+                double len = link.toGeometry().length();
+                int color = firstColor[b.pos];
+                boolean wasConnected = connected.get(color);
+                for (SupportNode f : targets[b.pos]) {
+                    double imp = len - f.distanceTo(e);
+                    if (imp < improvement || (imp == improvement && b.pos < best_pos)) {
+                        // the remaining targets are no better
+                        break;
                     }
 
-                    // check for improvement
-                    double imp = towardsBackbone[e.getGraphIndex()].toGeometry().length() - f.distanceTo(e);
-                    if (imp < improvement) {
+                    if (f.isNeighborOf(e)) {
                         continue;
                     }
 
                     // check for intersections
-                    LineSegment ls = new LineSegment(e, f);
-                    boolean intersects = false;
-
-                    for (SupportLink l : output.getEdges()) {
-                        if (l.getStart() == e || l.getStart() == f) {
-                            continue;
-                        }
-                        if (l.getEnd() == e || l.getEnd() == f) {
-                            continue;
-                        }
-                        if (l.getGeometry().intersect(ls, DoubleUtil.EPS).size() > 0) {
-                            intersects = true;
-                            break;
-                        }
-                    }
-
-                    if (intersects) {
+                    if (output.crossesAnyEdge(e, f)) {
                         continue;
                     }
 
                     // check for connectivity
-                    SupportNode oldTar = towardsBackbone[e.getGraphIndex()].getOtherVertex(e);
-                    output.removeEdge(towardsBackbone[e.getGraphIndex()]);
-                    SupportLink l = output.addEdge(e, f);
-                    towardsBackbone[e.getGraphIndex()] = l;
-
-                    boolean successful = checkConnectivity(e.point.colors.iterator().next());
-
-                    output.removeEdge(l);
-                    l = output.addEdge(e, oldTar);
-                    towardsBackbone[e.getGraphIndex()] = l;
-
-                    if (successful) {
-                        best_src = e;
-                        best_tar = f;
-                        improvement = imp;
-                        break;
+                    if (wasConnected ? reaches(e, link, f, color) : !connectsAfterMove(e, link, f, color)) {
+                        continue;
                     }
+
+                    best_pos = b.pos;
+                    best_tar = f;
+                    improvement = imp;
+                    break;
                 }
             }
 
-            if (best_tar != null) {
-                somethingatall = true;
-                didsomething = true;
-                output.removeEdge(towardsBackbone[best_src.getGraphIndex()]);
-                SupportLink l = output.addEdge(best_src, best_tar);
-                towardsBackbone[best_src.getGraphIndex()] = l;
+            if (best_tar == null) {
+                break;
+            }
+
+            somethingatall = true;
+            SupportNode best_src = elts.get(best_pos);
+            SupportLink old = towardsBackbone[best_src.getGraphIndex()];
+            output.removeEdge(old);
+            traversal.removeEdge(old.getStart().getGraphIndex(), old.getEnd().getGraphIndex());
+            SupportLink l = output.addEdge(best_src, best_tar);
+            traversal.addEdge(best_src.getGraphIndex(), best_tar.getGraphIndex());
+            towardsBackbone[best_src.getGraphIndex()] = l;
+
+            double len = l.toGeometry().length();
+            List<SupportNode> ts = targets[best_pos];
+            while (!ts.isEmpty() && len - ts.get(ts.size() - 1).distanceTo(best_src) < DoubleUtil.EPS) {
+                ts.remove(ts.size() - 1);
             }
+            bounds.remove(bound[best_pos]);
+            bound[best_pos] = new Bound(best_pos, ts.isEmpty() ? Double.NEGATIVE_INFINITY : len - ts.get(0).distanceTo(best_src));
+            bounds.add(bound[best_pos]);
 
-        } while (didsomething);
+            // only the colors of the moved point can have changed
+            for (int c : best_src.point.colors) {
+                connected.put(c, checkConnectivity(c));
+            }
+        }
 
         return somethingatall;
     }
 
+    /**
+     * Returns whether {@code target} can be reached from {@code source}
+     * without using {@code ignore}, via vertices of the given color.
+     */
+    private boolean reaches(SupportNode source, SupportLink ignore, SupportNode target, int color) {
+        traversal.search(source.getGraphIndex(), color,
+                ignore.getStart().getGraphIndex(), ignore.getEnd().getGraphIndex(), target.getGraphIndex());
+        return traversal.visited(target.getGraphIndex());
+    }
+
+    /**
+     * Returns whether the given color is connected once {@code link} of
+     * {@code source} is replaced by a link to {@code target}.
+     */
+    private boolean connectsAfterMove(SupportNode source, SupportLink link, SupportNode target, int color) {
+        int a = link.getStart().getGraphIndex(), b = link.getEnd().getGraphIndex();
+        traversal.removeEdge(a, b);
+        traversal.addEdge(source.getGraphIndex(), target.getGraphIndex());
+        boolean result = checkConnectivity(color);
+        traversal.removeEdge(source.getGraphIndex(), target.getGraphIndex());
+        traversal.addEdge(a, b);
+        return result;
+    }
+
+    private static class Bound implements Comparable<Bound> {
+
+        final int pos;
+        final double value;
+
+        Bound(int pos, double value) {
+            this.pos = pos;
+            this.value = value;
+        }
+
+        /**
+         * Orders by decreasing value, and then by decreasing position.
+         */
+        @Override
+        public int compareTo(Bound o) {
+            int c = Double.compare(o.value, value);
+            return c != 0 ? c : Integer.compare(o.pos, pos);
+        }
+    }
+
     private boolean computeSingleStar() {
         List<SupportNode> candidates = new ArrayList();
         for (ColoredPoint p : input.iterateExact(input.getColors())) {
@@ -278,8 +353,23 @@ public class SpanningTreeHeuristic extends Algorithm {
             return false;
         }
 
-        Random R = new Random();
-        SupportNode center = candidates.get(R.nextInt(candidates.size()));
+        SupportNode center;
+        switch (centerMode) {
+            case BEST: {
+                int[] indices = new int[candidates.size()];
+                for (int i = 0; i < indices.length; i++) {
+                    indices[i] = candidates.get(i).getGraphIndex();
+                }
+                center = candidates.get(findBestCenter(indices));
+                break;
+            }
+            case RANDOM:
+            default: {
+                Random R = new Random(seed);
+                center = candidates.get(R.nextInt(candidates.size()));
+                break;
+            }
+        }
 
         for (ColoredPoint p : input.iterate()) {
             SupportNode n = output.getNodemap().get(p);
@@ -291,4 +381,88 @@ public class SpanningTreeHeuristic extends Algorithm {
         return true;
     }
 
+    /**
+     * Returns the position of the candidate center with the shortest star.
+     * If evaluating all stars takes more than {@link #EXACT_CENTER_LIMIT}
+     * distance computations, the stars are first estimated on a sample of the
+     * points, and only the most promising candidates are evaluated exactly.
+     */
+    private int findBestCenter(int[] candidates) {
+        PackedPointSet packed = getPackedInput();
+        int n = packed.size();
+
+        int[] all = new int[n];
+        for (int i = 0; i < n; i++) {
+            all[i] = i;
+        }
+
+        int[] shortlist;
+        if ((long) candidates.length * n <= EXACT_CENTER_LIMIT) {
+            shortlist = new int[candidates.length];
+            for (int i = 0; i < shortlist.length; i++) {
+                shortlist[i] = i;
+            }
+        } else {
+            // partial Fisher-Yates shuffle for a sample without repetition
+            Random R = new Random(seed);
+            int[] sample = all.clone();
+            int s = Math.min(CENTER_SAMPLE_SIZE, n);
+            for (int i = 0; i < s; i++) {
+                int j = i + R.nextInt(n - i);
+                int t = sample[i];
+                sample[i] = sample[j];
+                sample[j] = t;
+            }
+            double[] estimate = starLengths(packed, candidates, Arrays.copyOf(sample, s));
+            Integer[] order = new Integer[candidates.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (Integer a, Integer b) -> Double.compare(estimate[a], estimate[b]));
+            shortlist = new int[Math.min(CENTER_SHORTLIST_SIZE, order.length)];
+            for (int i = 0; i < shortlist.length; i++) {
+                shortlist[i] = order[i];
+            }
+            Arrays.sort(shortlist);
+        }
+
+        int[] centers = new int[shortlist.length];
+        for (int i = 0; i < centers.length; i++) {
+            centers[i] = candidates[shortlist[i]];
+        }
+        double[] length = starLengths(packed, centers, all);
+        int best = 0;
+        for (int i = 1; i < length.length; i++) {
+            if (length[i] < length[best]) {
+                best = i;
+            }
+        }
+        return shortlist[best];
+    }
+
+    /**
+     * Computes, for every center, the total distance to the given points. The
+     * centers are handled in parallel.
+     */
+    private static double[] starLengths(PackedPointSet packed, int[] centers, int[] points) {
+        double[] length = new double[centers.length];
+        IntStream.range(0, centers.length).parallel().forEach((int i) -> {
+            double sum = 0;
+            for (int p : points) {
+                sum += packed.distance(centers[i], p);
+            }
+            length[i] = sum;
+        });
+        return length;
+    }
+
+    /**
+     * How {@link #computeSingleStar()} picks the center among the points that
+     * have all colors: a random one, reproducible through the seed, or the one
+     * with the shortest star.
+     */
+    public enum CenterMode {
+        RANDOM, BEST
+    }
+
 }
@@ -0,0 +1,156 @@
+/*
+ * This file is part of SPSSH.
+ *
+ * SPSSH is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPSSH is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPSSH. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package rbptrees.algo;
+
+import java.util.Arrays;
+import java.util.List;
+import rbptrees.data.ColoredPointSet;
+import rbptrees.data.ColoredPointSet.ColoredPoint;
+import rbptrees.data.SupportGraph;
+import rbptrees.data.SupportGraph.SupportLink;
+
+/**
+ * Reusable state for breadth-first searches within one color of a graph on
+ * the points of a point set: adjacency arrays indexed by point index, which
+ * is also the graph index of the support nodes, and a queue and visited stamps
+ * that are reused by every search. A search starts a new epoch, so the stamps
+ * never need to be cleared.
+ *
+ * The adjacency has to be kept in sync with the graph by the caller. A
+ * workspace is not thread-safe, but {@link #fork()} gives a workspace with its
+ * own search state on the same adjacency.
+ */
+final class TraversalWorkspace {
+
+    private final List<ColoredPoint> points;
+    private final int[][] adj;
+    private final int[] degree;
+    private final int[] stamp;
+    private final int[] queue;
+    private int epoch = 0;
+
+    TraversalWorkspace(ColoredPointSet input) {
+        this.points = input.getPoints();
+        int n = points.size();
+        this.adj = new int[n][];
+        this.degree = new int[n];
+        this.stamp = new int[n];
+        this.queue = new int[n];
+    }
+
+    private TraversalWorkspace(TraversalWorkspace shared) {
+        this.points = shared.points;
+        this.adj = shared.adj;
+        this.degree = shared.degree;
+        this.stamp = new int[points.size()];
+        this.queue = new int[points.size()];
+    }
+
+    /**
+     * Returns a workspace on the same adjacency, with its own search state.
+     */
+    TraversalWorkspace fork() {
+        return new TraversalWorkspace(this);
+    }
+
+    /**
+     * Replaces the adjacency with the edges of the given graph.
+     */
+    void load(SupportGraph graph) {
+        Arrays.fill(degree, 0);
+        for (SupportLink l : graph.getEdges()) {
+            addEdge(l.getStart().getGraphIndex(), l.getEnd().getGraphIndex());
+        }
+    }
+
+    void addEdge(int a, int b) {
+        addNeighbor(a, b);
+        addNeighbor(b, a);
+    }
+
+    private void addNeighbor(int a, int b) {
+        if (adj[a] == null) {
+            adj[a] = new int[4];
+        } else if (degree[a] == adj[a].length) {
+            adj[a] = Arrays.copyOf(adj[a], 2 * degree[a]);
+        }
+        adj[a][degree[a]++] = b;
+    }
+
+    void removeEdge(int a, int b) {
+        removeNeighbor(a, b);
+        removeNeighbor(b, a);
+    }
+
+    private void removeNeighbor(int a, int b) {
+        int[] ns = adj[a];
+        for (int i = 0; i < degree[a]; i++) {
+            if (ns[i] == b) {
+                ns[i] = ns[--degree[a]];
+                return;
+            }
+        }
+    }
+
+    /**
+     * Visits, from {@code source}, the points that can be reached via points
+     * of the given color, without using the edge between {@code ignoreA} and
+     * {@code ignoreB}. Stops as soon as {@code target} is reached, which need
+     * not have the color. Use -1 for no edge to ignore and no target. Returns
+     * the number of visited points; {@link #visited(int)} tells which ones,
+     * until the next search.
+     */
+    int search(int source, int color, int ignoreA, int ignoreB, int target) {
+        if (++epoch == Integer.MAX_VALUE) {
+            Arrays.fill(stamp, 0);
+            epoch = 1;
+        }
+        int head = 0, tail = 0;
+        queue[tail++] = source;
+        stamp[source] = epoch;
+        while (head < tail) {
+            int u = queue[head++];
+            int[] ns = adj[u];
+            for (int i = 0; i < degree[u]; i++) {
+                int v = ns[i];
+                if (stamp[v] == epoch
+                        || (u == ignoreA && v == ignoreB) || (u == ignoreB && v == ignoreA)) {
+                    continue;
+                }
+                if (v == target) {
+                    stamp[v] = epoch;
+                    return tail + 1;
+                }
+                if (points.get(v).hasColor(color)) {
+                    stamp[v] = epoch;
+                    queue[tail++] = v;
+                }
+            }
+        }
+        return tail;
+    }
+
+    /**
+     * Returns whether the last search visited the given point.
+     */
+    boolean visited(int v) {
+        return stamp[v] == epoch;
+    }
+
+}
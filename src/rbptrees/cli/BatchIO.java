@@ -111,6 +111,7 @@ public class BatchIO {
             algoResults.put("runtime", result.runningTimeMs);
             algoResults.put("intersections", result.numIntersections);
             algoResults.put("edgeLength", result.totalEdgeLength);
+            algoResults.putAll(result.statistics);
         }
 
         try {
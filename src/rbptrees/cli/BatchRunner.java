@@ -32,6 +32,7 @@ import rbptrees.algo.BruteForceSolver;
 import rbptrees.algo.BruteForceWithInit;
 import rbptrees.algo.IntegerLinearProgram;
 import rbptrees.algo.LocalSearch;
+import rbptrees.algo.MultiStartLocalSearch;
 import rbptrees.algo.MSTApprox;
 import rbptrees.algo.MSTIteration;
 import rbptrees.algo.SpanningTreeHeuristic;
@@ -51,6 +52,7 @@ public class BatchRunner {
         new MSTApprox(),
         new MSTIteration(),
         new LocalSearch(),
+        new MultiStartLocalSearch(),
         new BruteForceSolver(false, false),
         new BruteForceWithInit()
     };
@@ -131,7 +133,8 @@ public class BatchRunner {
                         long took = System.currentTimeMillis() - time;
                         System.out.print(".");
                         results.put(new Pair<>(algo, pointSetPath),
-                                new Result(algo.getOutput(), took));
+                                new Result(algo.getOutput(), took,
+                                        algo.getStatistics()));
                         // write an Ipe file
                         try (IPEWriter write = IPEWriter.fileWriter(
                                 new File(outDir, pointSetPath + " - " +
@@ -165,11 +168,14 @@ public class BatchRunner {
         public long runningTimeMs;
         public int numIntersections;
         public double totalEdgeLength;
+        public Map<String, Number> statistics;
 
-        public Result(SupportGraph output, long runningTimeMs) {
+        public Result(SupportGraph output, long runningTimeMs,
+                Map<String, Number> statistics) {
             this.runningTimeMs = runningTimeMs;
             this.numIntersections = output.getIntersectionCount();
             this.totalEdgeLength = output.getTotalLength();
+            this.statistics = new HashMap<>(statistics);
         }
 
     }
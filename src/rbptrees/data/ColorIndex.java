@@ -0,0 +1,128 @@
+/*
+ * This file is part of SPSSH.
+ *
+ * SPSSH is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPSSH is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPSSH. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package rbptrees.data;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import rbptrees.data.ColoredPointSet.ColoredPoint;
+
+/**
+ * Inverted index of a {@link ColoredPointSet}: for every color the sorted
+ * indices of the points that have that color, and for every combination of
+ * colors that occurs the sorted indices of the points with exactly those
+ * colors. Kept up to date by the point set.
+ */
+class ColorIndex {
+
+    private final Map<Integer, IntList> byColor;
+    private final Map<Signature, IntList> bySignature;
+
+    ColorIndex() {
+        byColor = new HashMap<>();
+        bySignature = new HashMap<>();
+    }
+
+    void clear() {
+        byColor.clear();
+        bySignature.clear();
+    }
+
+    void add(ColoredPoint p) {
+        int i = p.getIndex();
+        for (int c : p.colors) {
+            IntList list = byColor.get(c);
+            if (list == null) {
+                list = new IntList();
+                byColor.put(c, list);
+            }
+            list.insertSorted(i);
+        }
+        Signature sig = new Signature(p.getColorMask(), p.getHighColorMask());
+        IntList bucket = bySignature.get(sig);
+        if (bucket == null) {
+            bucket = new IntList();
+            bySignature.put(sig, bucket);
+        }
+        bucket.insertSorted(i);
+    }
+
+    void remove(ColoredPoint p) {
+        int i = p.getIndex();
+        for (int c : p.colors) {
+            IntList list = byColor.get(c);
+            if (list != null) {
+                list.removeSorted(i);
+                if (list.isEmpty()) {
+                    byColor.remove(c);
+                }
+            }
+        }
+        Signature sig = new Signature(p.getColorMask(), p.getHighColorMask());
+        IntList bucket = bySignature.get(sig);
+        if (bucket != null) {
+            bucket.removeSorted(i);
+            if (bucket.isEmpty()) {
+                bySignature.remove(sig);
+            }
+        }
+    }
+
+    /**
+     * Returns the sorted indices of points with the given color, or
+     * {@code null} if there are none.
+     */
+    IntList ofColor(int color) {
+        return byColor.get(color);
+    }
+
+    /**
+     * Returns the sorted indices of points with exactly the given colors, or
+     * {@code null} if there are none.
+     */
+    IntList ofSignature(long mask, long[] high) {
+        return bySignature.get(new Signature(mask, high));
+    }
+
+    private static class Signature {
+
+        final long mask;
+        final long[] high;
+
+        Signature(long mask, long[] high) {
+            this.mask = mask;
+            this.high = high == null ? null : high.clone();
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(mask) * 31 + Arrays.hashCode(high);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Signature)) {
+                return false;
+            }
+            Signature other = (Signature) obj;
+            return mask == other.mask && Arrays.equals(high, other.high);
+        }
+    }
+
+}
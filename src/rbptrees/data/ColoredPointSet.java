@@ -18,7 +18,10 @@
 
 package rbptrees.data;
 
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -37,17 +40,24 @@ public class ColoredPointSet {
     private List<ColoredPoint> points;
     private Set<Integer> colors;
     private Map<Integer, String> colornames;
+    private final ColorIndex index;
+    private CrossingOracle crossingOracle;
+    // the state for which crossingOracle was built, or found to be too large
+    private PackedPointSet crossingOracleState;
 
     public ColoredPointSet() {
         points = new ArrayList<>();
         colors = new HashSet<>();
         colornames = new HashMap();
+        index = new ColorIndex();
     }
 
     public ColoredPoint addPoint(double x, double y, int... colors) {
         ColoredPoint p = new ColoredPoint(x, y);
         p.setColors(colors);
+        p.index = points.size();
         points.add(p);
+        index.add(p);
         for (int c : colors) {
             this.colors.add(c);
         }
@@ -74,6 +84,24 @@ public class ColoredPointSet {
         colors.addAll(cls);
     }
 
+    /**
+     * Returns the crossing relation among the candidate edges of this point
+     * set. It is computed on first use and recomputed only when points moved
+     * or changed colors. Returns {@code null} if the point set is too large for
+     * an oracle, see {@link CrossingOracle#MAX_CANDIDATES}; that outcome is
+     * remembered in the same way.
+     */
+    public synchronized CrossingOracle getCrossingOracle() {
+        if (!hasCompactColors()) {
+            return null;
+        }
+        if (crossingOracleState == null || !CrossingOracle.matches(crossingOracleState, this)) {
+            crossingOracleState = new PackedPointSet(this);
+            crossingOracle = CrossingOracle.build(crossingOracleState);
+        }
+        return crossingOracle;
+    }
+
     public Map<Integer, String> getColornames() {
         return colornames;
     }
@@ -144,15 +172,59 @@ public class ColoredPointSet {
     }
 
     /**
-     * Iterate over all points of which the colors match the provided colors.
+     * Iterate over all points in the given sorted lists of point indices, in
+     * order of index. An index in multiple lists is reported once.
      */
-    public Iterable<ColoredPoint> iterateExact(Set<Integer> colorsSet) {
-        return iterate(new ColorFilter() {
+    private Iterable<ColoredPoint> iterateIndices(IntList... lists) {
+        return new Iterable<ColoredPointSet.ColoredPoint>() {
             @Override
-            public boolean test(ColoredPoint p) {
-                return colorsSet.equals(p.colors);
+            public Iterator<ColoredPoint> iterator() {
+                return new Iterator<ColoredPointSet.ColoredPoint>() {
+                    private final int[] positions = new int[lists.length];
+
+                    private int peek() {
+                        int min = Integer.MAX_VALUE;
+                        for (int i = 0; i < lists.length; i++) {
+                            if (positions[i] < lists[i].size()) {
+                                min = Math.min(min, lists[i].get(positions[i]));
+                            }
+                        }
+                        return min;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return peek() < Integer.MAX_VALUE;
+                    }
+
+                    @Override
+                    public ColoredPoint next() {
+                        int next = peek();
+                        if (next == Integer.MAX_VALUE) {
+                            throw new NoSuchElementException();
+                        }
+                        for (int i = 0; i < lists.length; i++) {
+                            if (positions[i] < lists[i].size()
+                                    && lists[i].get(positions[i]) == next) {
+                                positions[i]++;
+                            }
+                        }
+                        return points.get(next);
+                    }
+                };
             }
-        });
+        };
+    }
+
+    /**
+     * Iterate over all points of which the colors match the provided colors.
+     */
+    public Iterable<ColoredPoint> iterateExact(Set<Integer> colorsSet) {
+        IntList bucket = index.ofSignature(lowMask(colorsSet), highMask(colorsSet));
+        if (bucket == null) {
+            return Collections.emptyList();
+        }
+        return iterateIndices(bucket);
     }
 
     /**
@@ -168,10 +240,12 @@ public class ColoredPointSet {
      * colors.
      */
     public Iterable<ColoredPoint> iterateIntersection(Set<Integer> colorsSet) {
+        final long mask = lowMask(colorsSet);
+        final long[] high = highMask(colorsSet);
         return iterate(new ColorFilter() {
             @Override
             public boolean test(ColoredPoint p) {
-                return colorsSet.containsAll(p.colors);
+                return (p.colorMask & ~mask) == 0 && highSubset(p.highColorMask, high);
             }
         });
     }
@@ -189,17 +263,14 @@ public class ColoredPointSet {
      * colors.
      */
     public Iterable<ColoredPoint> iterateUnion(Set<Integer> colorsSet) {
-        return iterate(new ColorFilter() {
-            @Override
-            public boolean test(ColoredPoint p) {
-                for (Integer c : colorsSet) {
-                    if (p.colors.contains(c)) {
-                        return true;
-                    }
-                }
-                return false;
+        List<IntList> lists = new ArrayList<>(colorsSet.size());
+        for (int c : colorsSet) {
+            IntList list = index.ofColor(c);
+            if (list != null) {
+                lists.add(list);
             }
-        });
+        }
+        return iterateIndices(lists.toArray(new IntList[lists.size()]));
     }
 
     public int size() {
@@ -207,7 +278,30 @@ public class ColoredPointSet {
     }
 
     public int size(ColorFilter filter) {
-        return Utils.collectIterable(iterate(filter)).size();
+        int cnt = 0;
+        for (ColoredPoint p : points) {
+            if (filter.test(p)) {
+                cnt++;
+            }
+        }
+        return cnt;
+    }
+
+    /**
+     * Returns the number of points that have the given color.
+     */
+    public int size(int color) {
+        IntList list = index.ofColor(color);
+        return list == null ? 0 : list.size();
+    }
+
+    /**
+     * Returns the indices in {@link #getPoints()} of all points that have the
+     * given color, in increasing order.
+     */
+    public int[] indicesOf(int color) {
+        IntList list = index.ofColor(color);
+        return list == null ? new int[0] : list.toArray();
     }
 
     public List<ColoredPoint> getPoints() {
@@ -223,17 +317,166 @@ public class ColoredPointSet {
             p.colors.remove(col);
             if (p.colors.isEmpty()) {
                 it.remove();
+                p.index = -1;
+            }
+        }
+        // removing points shifts indices, so the index is rebuilt from scratch
+        index.clear();
+        for (int i = 0; i < points.size(); i++) {
+            ColoredPoint p = points.get(i);
+            p.index = i;
+            index.add(p);
+        }
+    }
+
+    /**
+     * Returns whether all colors in this set are smaller than 64, which means
+     * that {@link ColoredPoint#getColorMask()} describes the colors of every
+     * point completely.
+     */
+    public boolean hasCompactColors() {
+        for (int c : colors) {
+            if (c >= Long.SIZE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the bitmask of all colors in the given collection that are
+     * smaller than 64.
+     */
+    public static long lowMask(Collection<Integer> colors) {
+        long mask = 0;
+        for (int c : colors) {
+            if (c < Long.SIZE) {
+                mask |= 1L << c;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Returns the bitset of all colors in the given collection that are at
+     * least 64, where word {@code i} holds colors {@code 64 * (i + 1)} and up.
+     * Returns {@code null} if there are no such colors.
+     */
+    private static long[] highMask(Collection<Integer> colors) {
+        long[] high = null;
+        for (int c : colors) {
+            if (c >= Long.SIZE) {
+                high = setHighBit(high, c);
+            }
+        }
+        return high;
+    }
+
+    private static long[] setHighBit(long[] high, int c) {
+        int word = c / Long.SIZE - 1;
+        if (high == null) {
+            high = new long[word + 1];
+        } else if (high.length <= word) {
+            high = Arrays.copyOf(high, word + 1);
+        }
+        high[word] |= 1L << c;
+        return high;
+    }
+
+    private static long[] clearHighBit(long[] high, int c) {
+        int word = c / Long.SIZE - 1;
+        if (high == null || high.length <= word) {
+            return high;
+        }
+        high[word] &= ~(1L << c);
+        // keep the representation compact, so that equality is word-wise
+        int len = high.length;
+        while (len > 0 && high[len - 1] == 0) {
+            len--;
+        }
+        if (len == 0) {
+            return null;
+        }
+        return len == high.length ? high : Arrays.copyOf(high, len);
+    }
+
+    private static boolean highEquals(long[] a, long[] b) {
+        return a == b || Arrays.equals(a, b);
+    }
+
+    private static boolean highSubset(long[] a, long[] b) {
+        if (a == null) {
+            return true;
+        }
+        for (int i = 0; i < a.length; i++) {
+            long w = (b == null || i >= b.length) ? 0 : b[i];
+            if ((a[i] & ~w) != 0) {
+                return false;
             }
         }
+        return true;
+    }
+
+    private static boolean highIntersects(long[] a, long[] b) {
+        if (a == null || b == null) {
+            return false;
+        }
+        int len = Math.min(a.length, b.length);
+        for (int i = 0; i < len; i++) {
+            if ((a[i] & b[i]) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int highCount(long[] high) {
+        int cnt = 0;
+        if (high != null) {
+            for (long w : high) {
+                cnt += Long.bitCount(w);
+            }
+        }
+        return cnt;
     }
 
     public class ColoredPoint extends Vector {
 
-        public Set<Integer> colors;
+        /**
+         * View on the colors of this point. It is backed by the color mask of
+         * this point, so changes to the set are reflected in the mask.
+         */
+        public final Set<Integer> colors;
+        /**
+         * Colors {@code 0} to {@code 63} of this point, one bit per color.
+         */
+        private long colorMask;
+        /**
+         * Colors {@code 64} and up, where word {@code i} holds colors
+         * {@code 64 * (i + 1)} and up; {@code null} if there are none.
+         */
+        private long[] highColorMask;
+        /**
+         * Position of this point in {@link ColoredPointSet#getPoints()}, or
+         * {@code -1} if it is not part of the set.
+         */
+        private int index;
 
         public ColoredPoint(double x, double y) {
             super(x, y);
-            colors = new HashSet<>();
+            colors = new ColorSet();
+            colorMask = 0;
+            highColorMask = null;
+            index = -1;
+        }
+
+        /**
+         * Returns the position of this point in
+         * {@link ColoredPointSet#getPoints()}, or {@code -1} if it is not part
+         * of the set.
+         */
+        public int getIndex() {
+            return index;
         }
 
         public void setColors(int[] colors) {
@@ -243,6 +486,33 @@ public class ColoredPointSet {
             }
         }
 
+        /**
+         * Returns the colors of this point that are smaller than 64 as a
+         * bitmask, where bit {@code c} is set iff this point has color
+         * {@code c}. If {@link ColoredPointSet#hasCompactColors()}, this
+         * describes all colors of the point.
+         */
+        public long getColorMask() {
+            return colorMask;
+        }
+
+        public boolean hasColor(int c) {
+            if (c < Long.SIZE) {
+                return c >= 0 && (colorMask & (1L << c)) != 0;
+            }
+            int word = c / Long.SIZE - 1;
+            return highColorMask != null && word < highColorMask.length
+                    && (highColorMask[word] & (1L << c)) != 0;
+        }
+
+        long[] getHighColorMask() {
+            return highColorMask;
+        }
+
+        public int getColorCount() {
+            return Long.bitCount(colorMask) + highCount(highColorMask);
+        }
+
         @Override
         public String toString() {
             String s = "[ " + getX() + " " + getY() + " ; ";
@@ -253,12 +523,150 @@ public class ColoredPointSet {
         }
 
         public boolean hasCommonColor(ColoredPoint point) {
-            for (int c : colors) {
-                if (point.colors.contains(c)) {
-                    return true;
+            return (colorMask & point.colorMask) != 0
+                    || highIntersects(highColorMask, point.highColorMask);
+        }
+
+        /**
+         * Returns whether this point has every color of the given point.
+         */
+        public boolean hasAllColorsOf(ColoredPoint point) {
+            return (point.colorMask & ~colorMask) == 0
+                    && highSubset(point.highColorMask, highColorMask);
+        }
+
+        /**
+         * Returns whether this point has exactly the colors of the given point.
+         */
+        public boolean hasSameColors(ColoredPoint point) {
+            return colorMask == point.colorMask
+                    && highEquals(highColorMask, point.highColorMask);
+        }
+
+        /**
+         * Returns the colors this point has in common with the given point, in
+         * increasing order.
+         */
+        public List<Integer> getCommonColors(ColoredPoint point) {
+            List<Integer> common = new ArrayList<>();
+            long mask = colorMask & point.colorMask;
+            while (mask != 0) {
+                common.add(Long.numberOfTrailingZeros(mask));
+                mask &= mask - 1;
+            }
+            if (highColorMask != null && point.highColorMask != null) {
+                int len = Math.min(highColorMask.length, point.highColorMask.length);
+                for (int i = 0; i < len; i++) {
+                    long w = highColorMask[i] & point.highColorMask[i];
+                    while (w != 0) {
+                        common.add((i + 1) * Long.SIZE + Long.numberOfTrailingZeros(w));
+                        w &= w - 1;
+                    }
                 }
             }
-            return false;
+            return common;
+        }
+
+        private void unindex() {
+            if (index >= 0) {
+                ColoredPointSet.this.index.remove(this);
+            }
+        }
+
+        private void reindex() {
+            if (index >= 0) {
+                ColoredPointSet.this.index.add(this);
+            }
+        }
+
+        private class ColorSet extends AbstractSet<Integer> {
+
+            @Override
+            public int size() {
+                return getColorCount();
+            }
+
+            @Override
+            public boolean isEmpty() {
+                return colorMask == 0 && highColorMask == null;
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return (o instanceof Integer) && hasColor((Integer) o);
+            }
+
+            @Override
+            public boolean add(Integer c) {
+                if (c < 0) {
+                    throw new IllegalArgumentException("colors must be non-negative, got " + c);
+                }
+                if (hasColor(c)) {
+                    return false;
+                }
+                unindex();
+                if (c < Long.SIZE) {
+                    colorMask |= 1L << c;
+                } else {
+                    highColorMask = setHighBit(highColorMask, c);
+                }
+                reindex();
+                return true;
+            }
+
+            @Override
+            public boolean remove(Object o) {
+                if (!contains(o)) {
+                    return false;
+                }
+                int c = (Integer) o;
+                unindex();
+                if (c < Long.SIZE) {
+                    colorMask &= ~(1L << c);
+                } else {
+                    highColorMask = clearHighBit(highColorMask, c);
+                }
+                reindex();
+                return true;
+            }
+
+            @Override
+            public void clear() {
+                unindex();
+                colorMask = 0;
+                highColorMask = null;
+                reindex();
+            }
+
+            @Override
+            public Iterator<Integer> iterator() {
+                // iterate over a snapshot, so that the mask may change meanwhile
+                return new Iterator<Integer>() {
+                    private final List<Integer> snapshot = getCommonColors(ColoredPoint.this);
+                    private int position = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return position < snapshot.size();
+                    }
+
+                    @Override
+                    public Integer next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        return snapshot.get(position++);
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (position == 0) {
+                            throw new IllegalStateException();
+                        }
+                        ColorSet.this.remove(snapshot.get(position - 1));
+                    }
+                };
+            }
         }
 
     }
@@ -0,0 +1,228 @@
+/*
+ * This file is part of SPSSH.
+ *
+ * SPSSH is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPSSH is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPSSH. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package rbptrees.data;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+import rbptrees.data.ColoredPointSet.ColoredPoint;
+
+/**
+ * Precomputed crossing relation among the candidate edges of a
+ * {@link ColoredPointSet}: all pairs of points that share a color. Candidate
+ * edges are numbered; two candidates cross if they intersect and do not share
+ * an endpoint. The relation is stored as a bit matrix, so that a query takes
+ * constant time.
+ *
+ * Obtain an oracle through {@link ColoredPointSet#getCrossingOracle()}, which
+ * builds it once and reuses it, or the fact that the point set is too large,
+ * as long as the point set does not change.
+ */
+public final class CrossingOracle {
+
+    /**
+     * Maximum number of candidate edges for which an oracle is built. The bit
+     * matrix then takes about 16 MiB.
+     */
+    public static final int MAX_CANDIDATES = 1 << 14;
+
+    private final PackedPointSet points;
+    // candidate id of every pair of points that shares a color, in an
+    // open-addressing table keyed by pairKey; slots with key -1 are empty
+    private final long[] keys;
+    private final int[] ids;
+    private final int[] from, to;
+    // row a holds bits for candidates b > a, at position b - a - 1
+    private final long[][] rows;
+
+    private CrossingOracle(PackedPointSet points, int[] from, int[] to) {
+        this.points = points;
+        this.from = from;
+        this.to = to;
+        int m = from.length;
+        int capacity = Integer.highestOneBit(Math.max(2 * m, 1)) << 1;
+        this.keys = new long[capacity];
+        this.ids = new int[capacity];
+        Arrays.fill(keys, -1);
+        for (int id = 0; id < m; id++) {
+            int slot = slot(pairKey(from[id], to[id]));
+            keys[slot] = pairKey(from[id], to[id]);
+            ids[slot] = id;
+        }
+        this.rows = new long[m][];
+        IntStream.range(0, m).parallel().forEach((int a) -> {
+            long[] row = new long[(m - a - 1 + Long.SIZE - 1) / Long.SIZE];
+            int i = from[a], j = to[a];
+            for (int b = a + 1; b < m; b++) {
+                int k = from[b], l = to[b];
+                if (i == k || i == l || j == k || j == l) {
+                    continue;
+                }
+                if (Crossings.intersect(points.x(i), points.y(i), points.x(j), points.y(j),
+                        points.x(k), points.y(k), points.x(l), points.y(l))) {
+                    int bit = b - a - 1;
+                    row[bit / Long.SIZE] |= 1L << bit;
+                }
+            }
+            rows[a] = row;
+        });
+    }
+
+    /**
+     * Builds an oracle for the given snapshot of a point set, or returns
+     * {@code null} if it has more than {@link #MAX_CANDIDATES} candidate
+     * edges or uses colors that do not fit in a mask.
+     */
+    static CrossingOracle build(PackedPointSet points) {
+        if (!points.hasColorMasks()) {
+            return null;
+        }
+        int n = points.size();
+        // count first, so that nothing is allocated for sets that are too large
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                if (points.hasCommonColor(i, j) && ++m > MAX_CANDIDATES) {
+                    return null;
+                }
+            }
+        }
+        int[] from = new int[m];
+        int[] to = new int[m];
+        int id = 0;
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                if (points.hasCommonColor(i, j)) {
+                    from[id] = i;
+                    to[id] = j;
+                    id++;
+                }
+            }
+        }
+        return new CrossingOracle(points, from, to);
+    }
+
+    private static long pairKey(int i, int j) {
+        return ((long) i << 32) | j;
+    }
+
+    /**
+     * Returns the slot of the given key in the pair table: the slot holding
+     * it, or the empty slot where it would be inserted.
+     */
+    private int slot(long key) {
+        int mask = keys.length - 1;
+        int h = (int) (key ^ (key >>> 29)) * 0x9E3779B9;
+        int slot = (h ^ (h >>> 16)) & mask;
+        while (keys[slot] != -1 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Returns whether the given snapshot still describes the given point set,
+     * that is, whether no point moved or changed colors since it was taken.
+     */
+    static boolean matches(PackedPointSet points, ColoredPointSet pointset) {
+        List<ColoredPoint> pts = pointset.getPoints();
+        int n = points.size();
+        if (pts.size() != n || !pointset.hasCompactColors()) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            ColoredPoint p = pts.get(i);
+            if (p.getX() != points.x(i) || p.getY() != points.y(i)
+                    || p.getColorMask() != points.colorMask(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of candidate edges.
+     */
+    public int size() {
+        return from.length;
+    }
+
+    /**
+     * Returns the id of the candidate edge between points {@code i} and
+     * {@code j}, or {@code -1} if they do not share a color.
+     */
+    public int candidate(int i, int j) {
+        if (i == j) {
+            return -1;
+        }
+        int slot = slot(i < j ? pairKey(i, j) : pairKey(j, i));
+        return keys[slot] == -1 ? -1 : ids[slot];
+    }
+
+    /**
+     * Returns the lower point index of the given candidate edge.
+     */
+    public int from(int id) {
+        return from[id];
+    }
+
+    /**
+     * Returns the higher point index of the given candidate edge.
+     */
+    public int to(int id) {
+        return to[id];
+    }
+
+    /**
+     * Returns whether the two given candidate edges cross. Candidates that
+     * share an endpoint never cross.
+     */
+    public boolean crosses(int a, int b) {
+        if (a == b) {
+            return false;
+        }
+        if (b < a) {
+            int t = a;
+            a = b;
+            b = t;
+        }
+        int bit = b - a - 1;
+        return (rows[a][bit / Long.SIZE] & (1L << bit)) != 0;
+    }
+
+    /**
+     * Returns whether segments {@code ij} and {@code kl} cross, where the
+     * arguments are point indices. Segments that share an endpoint never
+     * cross. Pairs of points without a common color are not candidates; for
+     * those the test is computed directly.
+     */
+    public boolean crosses(int i, int j, int k, int l) {
+        if (i == k || i == l || j == k || j == l) {
+            return false;
+        }
+        int a = candidate(i, j);
+        int b = candidate(k, l);
+        if (a >= 0 && b >= 0) {
+            return crosses(a, b);
+        }
+        return Crossings.intersect(points.x(i), points.y(i), points.x(j), points.y(j),
+                points.x(k), points.y(k), points.x(l), points.y(l));
+    }
+
+}
@@ -0,0 +1,215 @@
+/*
+ * This file is part of SPSSH.
+ *
+ * SPSSH is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPSSH is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPSSH. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package rbptrees.data;
+
+import java.util.Arrays;
+import java.util.List;
+import nl.tue.geometrycore.geometry.Vector;
+import nl.tue.geometrycore.geometry.linear.LineSegment;
+import nl.tue.geometrycore.util.DoubleUtil;
+import rbptrees.data.SupportGraph.SupportLink;
+import rbptrees.data.SupportGraph.SupportNode;
+
+/**
+ * Segment intersection tests, and counting of crossings in a support. The
+ * tests give the same outcome as {@code LineSegment.intersect}, which treats
+ * segments as closed and uses a tolerance of {@link DoubleUtil#EPS}. Clear
+ * cases are decided by orientation tests without allocating; pairs that are
+ * nearly parallel or nearly touching are handed to
+ * {@code LineSegment.intersect} itself.
+ */
+public final class Crossings {
+
+    private static final double EPS = DoubleUtil.EPS;
+    // distances up to this are too close to call with orientation tests
+    private static final double MARGIN = 2 * EPS;
+
+    private Crossings() {
+    }
+
+    /**
+     * Returns whether segment {@code ab} and segment {@code cd} have at least
+     * one point in common.
+     */
+    public static boolean intersect(double ax, double ay, double bx, double by,
+            double cx, double cy, double dx, double dy) {
+        // bounding boxes must overlap
+        if (Math.max(ax, bx) < Math.min(cx, dx) - EPS
+                || Math.max(cx, dx) < Math.min(ax, bx) - EPS
+                || Math.max(ay, by) < Math.min(cy, dy) - EPS
+                || Math.max(cy, dy) < Math.min(ay, by) - EPS) {
+            return false;
+        }
+
+        double lab = Math.hypot(bx - ax, by - ay);
+        double lcd = Math.hypot(dx - cx, dy - cy);
+        if (lab > MARGIN && lcd > MARGIN) {
+            double ux = (bx - ax) / lab, uy = (by - ay) / lab;
+            double vx = (dx - cx) / lcd, vy = (dy - cy) / lcd;
+            boolean parallel = (Math.abs(ux - vx) <= MARGIN && Math.abs(uy - vy) <= MARGIN)
+                    || (Math.abs(ux + vx) <= MARGIN && Math.abs(uy + vy) <= MARGIN);
+            if (!parallel) {
+                // distances of the endpoints to the line through the other segment
+                double d1 = orientation(ax, ay, bx, by, cx, cy) / lab;
+                double d2 = orientation(ax, ay, bx, by, dx, dy) / lab;
+                double d3 = orientation(cx, cy, dx, dy, ax, ay) / lcd;
+                double d4 = orientation(cx, cy, dx, dy, bx, by) / lcd;
+                if (Math.abs(d1) > MARGIN && Math.abs(d2) > MARGIN
+                        && Math.abs(d3) > MARGIN && Math.abs(d4) > MARGIN) {
+                    // a proper crossing, or clearly apart
+                    return (d1 > 0) != (d2 > 0) && (d3 > 0) != (d4 > 0);
+                }
+            }
+        }
+
+        // nearly degenerate, such as touching or collinear segments
+        LineSegment ab = new LineSegment(new Vector(ax, ay), new Vector(bx, by));
+        LineSegment cd = new LineSegment(new Vector(cx, cy), new Vector(dx, dy));
+        return !ab.intersect(cd).isEmpty();
+    }
+
+    public static boolean intersect(Vector a, Vector b, Vector c, Vector d) {
+        return intersect(a.getX(), a.getY(), b.getX(), b.getY(),
+                c.getX(), c.getY(), d.getX(), d.getY());
+    }
+
+    /**
+     * Returns twice the signed area of triangle {@code abc}: positive if it is
+     * counterclockwise, negative if it is clockwise.
+     */
+    public static double orientation(double ax, double ay, double bx, double by,
+            double cx, double cy) {
+        return (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+    }
+
+    /**
+     * Counts the pairs of edges of the given support that intersect, ignoring
+     * pairs that share an endpoint.
+     *
+     * Edges are put in the cells of an {@link EdgeGrid} that they pass
+     * through, and only pairs that share a cell are tested. Every edge is
+     * keyed by its endpoint of highest degree; edges with the same key share
+     * that endpoint, so they are never paired up. The edges of a star, for
+     * instance, are not tested against each other at all.
+     */
+    public static int count(SupportGraph graph) {
+        List<SupportLink> edges = graph.getEdges();
+        List<SupportNode> vertices = graph.getVertices();
+        int m = edges.size();
+        int n = vertices.size();
+        EdgeGrid grid = new EdgeGrid(vertices);
+        int cellCount = grid.cellCount();
+
+        // edges in order of their key
+        int[] key = new int[m];
+        int[] keyStart = new int[n + 1];
+        for (int e = 0; e < m; e++) {
+            SupportNode u = edges.get(e).getStart(), v = edges.get(e).getEnd();
+            int du = u.getDegree(), dv = v.getDegree();
+            boolean byU = du > dv || (du == dv && u.getGraphIndex() < v.getGraphIndex());
+            key[e] = byU ? u.getGraphIndex() : v.getGraphIndex();
+            keyStart[key[e] + 1]++;
+        }
+        for (int k = 0; k < n; k++) {
+            keyStart[k + 1] += keyStart[k];
+        }
+        int[] order = new int[m];
+        for (int e = 0; e < m; e++) {
+            order[keyStart[key[e]]++] = e;
+        }
+
+        // cells of every edge
+        int[] edgeStart = new int[m + 1];
+        IntList edgeCells = new IntList();
+        IntList scratch = new IntList();
+        int[] cellStart = new int[cellCount + 1];
+        for (int e = 0; e < m; e++) {
+            grid.cellsOf(edges.get(e).getStart(), edges.get(e).getEnd(), scratch);
+            for (int j = 0; j < scratch.size(); j++) {
+                edgeCells.add(scratch.get(j));
+                cellStart[scratch.get(j) + 1]++;
+            }
+            edgeStart[e + 1] = edgeCells.size();
+        }
+        for (int c = 0; c < cellCount; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+
+        // edges of every cell, in key order, and the position of every edge
+        // in each of its cells
+        int[] cellEdges = new int[edgeCells.size()];
+        int[] position = new int[edgeCells.size()];
+        int[] fill = Arrays.copyOf(cellStart, cellCount);
+        for (int e : order) {
+            for (int j = edgeStart[e]; j < edgeStart[e + 1]; j++) {
+                int p = fill[edgeCells.get(j)]++;
+                cellEdges[p] = e;
+                position[j] = p;
+            }
+        }
+
+        // bounds of the run of equal keys around every position
+        int[] blockStart = new int[cellEdges.length];
+        int[] blockEnd = new int[cellEdges.length];
+        for (int c = 0; c < cellCount; c++) {
+            for (int p = cellStart[c]; p < cellStart[c + 1]; p++) {
+                boolean same = p > cellStart[c] && key[cellEdges[p - 1]] == key[cellEdges[p]];
+                blockStart[p] = same ? blockStart[p - 1] : p;
+            }
+            for (int p = cellStart[c + 1] - 1; p >= cellStart[c]; p--) {
+                boolean same = p + 1 < cellStart[c + 1] && key[cellEdges[p + 1]] == key[cellEdges[p]];
+                blockEnd[p] = same ? blockEnd[p + 1] : p + 1;
+            }
+        }
+
+        // test every pair once, from its edge with the lower index, which
+        // is also the order of the pairwise count
+        int[] seen = new int[m];
+        int cnt = 0;
+        for (int e = 0; e < m; e++) {
+            SupportLink ee = edges.get(e);
+            for (int j = edgeStart[e]; j < edgeStart[e + 1]; j++) {
+                int c = edgeCells.get(j);
+                int p = position[j];
+                for (int q = cellStart[c]; q < cellStart[c + 1]; q++) {
+                    if (q == blockStart[p]) {
+                        // skip the edges that share the key of e
+                        q = blockEnd[p] - 1;
+                        continue;
+                    }
+                    int f = cellEdges[q];
+                    if (f <= e || seen[f] == e + 1) {
+                        continue;
+                    }
+                    seen[f] = e + 1;
+                    SupportLink ff = edges.get(f);
+                    if (ee.getStart() == ff.getStart() || ee.getStart() == ff.getEnd()
+                            || ee.getEnd() == ff.getStart() || ee.getEnd() == ff.getEnd()) {
+                        continue;
+                    }
+                    if (intersect(ee.getStart(), ee.getEnd(), ff.getStart(), ff.getEnd())) {
+                        cnt++;
+                    }
+                }
+            }
+        }
+        return cnt;
+    }
+
+}
@@ -0,0 +1,277 @@
+/*
+ * This file is part of SPSSH.
+ *
+ * SPSSH is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPSSH is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPSSH. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package rbptrees.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import nl.tue.geometrycore.util.DoubleUtil;
+import rbptrees.data.SupportGraph.SupportLink;
+import rbptrees.data.SupportGraph.SupportNode;
+
+/**
+ * Uniform grid over the edges of a {@link SupportGraph}. Every edge is stored
+ * in the cells that it passes through, found column by column, so that
+ * crossing queries only need to look at edges near the query segment. A
+ * segment passes through at most a few cells per row and column of the grid.
+ *
+ * Queries do not modify the grid, so they may run concurrently as long as the
+ * graph is not changed meanwhile.
+ */
+class EdgeGrid {
+
+    private static final double EPS = DoubleUtil.EPS;
+
+    // per thread, which edges the current query has seen, by graph index
+    private static final ThreadLocal<Seen> SEEN = ThreadLocal.withInitial(Seen::new);
+
+    private final double minx, miny;
+    private final double cellw, cellh;
+    private final int cols, rows;
+    private final List<List<SupportLink>> cells;
+    // cells of the edge being inserted or removed
+    private final IntList scratch = new IntList();
+
+    /**
+     * Creates an empty grid for the given vertices, using about one cell per
+     * vertex.
+     */
+    EdgeGrid(List<SupportNode> vertices) {
+        double x0 = Double.POSITIVE_INFINITY, y0 = Double.POSITIVE_INFINITY;
+        double x1 = Double.NEGATIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+        for (SupportNode v : vertices) {
+            x0 = Math.min(x0, v.getX());
+            y0 = Math.min(y0, v.getY());
+            x1 = Math.max(x1, v.getX());
+            y1 = Math.max(y1, v.getY());
+        }
+        if (vertices.isEmpty()) {
+            x0 = y0 = x1 = y1 = 0;
+        }
+        int side = Math.max(1, (int) Math.sqrt(vertices.size()));
+        minx = x0;
+        miny = y0;
+        cols = side;
+        rows = side;
+        cellw = Math.max(x1 - x0, EPS) / cols;
+        cellh = Math.max(y1 - y0, EPS) / rows;
+        cells = new ArrayList<>(cols * rows);
+        for (int i = 0; i < cols * rows; i++) {
+            cells.add(null);
+        }
+    }
+
+    /**
+     * Returns the number of cells, which are numbered from 0.
+     */
+    int cellCount() {
+        return cols * rows;
+    }
+
+    private static void removeFrom(List<SupportLink> list, SupportLink e) {
+        for (int j = list.size() - 1; j >= 0; j--) {
+            if (list.get(j) == e) {
+                // order is irrelevant, so swap with last
+                list.set(j, list.get(list.size() - 1));
+                list.remove(list.size() - 1);
+                return;
+            }
+        }
+    }
+
+    private int col(double x) {
+        int c = (int) Math.floor((x - minx) / cellw);
+        return c < 0 ? 0 : (c >= cols ? cols - 1 : c);
+    }
+
+    private int row(double y) {
+        int r = (int) Math.floor((y - miny) / cellh);
+        return r < 0 ? 0 : (r >= rows ? rows - 1 : r);
+    }
+
+    /**
+     * Collects the cells that contain a point within distance {@link #EPS}
+     * of segment {@code uv}, in each direction. Per column, these are the rows
+     * between the lowest and highest point of the segment in that column.
+     */
+    void cellsOf(SupportNode u, SupportNode v, IntList out) {
+        out.clear();
+        double ax = u.getX(), ay = u.getY(), bx = v.getX(), by = v.getY();
+        if (bx < ax) {
+            double t = ax;
+            ax = bx;
+            bx = t;
+            t = ay;
+            ay = by;
+            by = t;
+        }
+        int c0 = col(ax - EPS), c1 = col(bx + EPS);
+        for (int c = c0; c <= c1; c++) {
+            // part of the segment within the column, widened by EPS; the
+            // outer columns also hold everything beyond the grid
+            double x0 = c == 0 ? ax : Math.max(ax, minx + c * cellw - EPS);
+            double x1 = c == cols - 1 ? bx : Math.min(bx, minx + (c + 1) * cellw + EPS);
+            double y0, y1;
+            if (bx - ax <= EPS) {
+                y0 = ay;
+                y1 = by;
+            } else {
+                double slope = (by - ay) / (bx - ax);
+                y0 = ay + (x0 - ax) * slope;
+                y1 = ay + (x1 - ax) * slope;
+            }
+            int r0 = row(Math.min(y0, y1) - EPS), r1 = row(Math.max(y0, y1) + EPS);
+            for (int r = r0; r <= r1; r++) {
+                out.add(r * cols + c);
+            }
+        }
+    }
+
+    void insert(SupportLink e) {
+        cellsOf(e.getStart(), e.getEnd(), scratch);
+        for (int j = 0; j < scratch.size(); j++) {
+            int i = scratch.get(j);
+            List<SupportLink> cell = cells.get(i);
+            if (cell == null) {
+                cell = new ArrayList<>(4);
+                cells.set(i, cell);
+            }
+            cell.add(e);
+        }
+    }
+
+    void remove(SupportLink e) {
+        cellsOf(e.getStart(), e.getEnd(), scratch);
+        for (int j = 0; j < scratch.size(); j++) {
+            removeFrom(cells.get(scratch.get(j)), e);
+        }
+    }
+
+    /**
+     * Returns whether segment {@code uv} intersects an edge in this grid,
+     * other than {@code ignore} and edges incident to {@code u} or {@code v}.
+     */
+    boolean crosses(SupportNode u, SupportNode v, SupportLink ignore) {
+        return find(u, v, ignore) != null;
+    }
+
+    /**
+     * Returns an edge in this grid that segment {@code uv} intersects, other
+     * than {@code ignore} and edges incident to {@code u} or {@code v}; or
+     * {@code null} if there is no such edge.
+     */
+    SupportLink find(SupportNode u, SupportNode v, SupportLink ignore) {
+        CrossingVisitor visitor = (SupportLink e) -> false;
+        return visit(u, v, ignore, visitor);
+    }
+
+    /**
+     * Returns the number of edges in this grid that segment {@code uv}
+     * intersects, other than {@code ignore} and edges incident to {@code u} or
+     * {@code v}.
+     */
+    int count(SupportNode u, SupportNode v, SupportLink ignore) {
+        int[] cnt = {0};
+        visit(u, v, ignore, (SupportLink e) -> {
+            cnt[0]++;
+            return true;
+        });
+        return cnt[0];
+    }
+
+    /**
+     * Reports all edges that segment {@code uv} intersects, other than
+     * {@code ignore} and edges incident to {@code u} or {@code v}, each exactly
+     * once. Stops early at the first edge for which the visitor returns
+     * {@code false}, and returns that edge; returns {@code null} otherwise.
+     */
+    SupportLink visit(SupportNode u, SupportNode v, SupportLink ignore, CrossingVisitor visitor) {
+        Seen seen = SEEN.get();
+        seen.next();
+        IntList query = seen.cells;
+        cellsOf(u, v, query);
+        for (int q = 0; q < query.size(); q++) {
+            List<SupportLink> cell = cells.get(query.get(q));
+            if (cell == null) {
+                continue;
+            }
+            for (int j = 0; j < cell.size(); j++) {
+                SupportLink e = cell.get(j);
+                if (e == ignore) {
+                    continue;
+                }
+                SupportNode a = e.getStart(), b = e.getEnd();
+                if (a == u || a == v || b == u || b == v) {
+                    continue;
+                }
+                // an edge is in every cell that it passes through, so only
+                // handle it in the first of those that the query reaches
+                if (!seen.mark(e.getGraphIndex())) {
+                    continue;
+                }
+                if (Crossings.intersect(u, v, a, b) && !visitor.visit(e)) {
+                    return e;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Edges seen by the current query on a thread, and a buffer for the cells
+     * of the query.
+     */
+    private static class Seen {
+
+        final IntList cells = new IntList();
+        private int[] stamps = new int[16];
+        private int epoch = 0;
+
+        void next() {
+            if (++epoch == Integer.MAX_VALUE) {
+                Arrays.fill(stamps, 0);
+                epoch = 1;
+            }
+        }
+
+        /**
+         * Marks the given edge as seen, and returns whether it was not yet.
+         */
+        boolean mark(int edge) {
+            if (edge >= stamps.length) {
+                stamps = Arrays.copyOf(stamps, Math.max(edge + 1, 2 * stamps.length));
+            }
+            if (stamps[edge] == epoch) {
+                return false;
+            }
+            stamps[edge] = epoch;
+            return true;
+        }
+    }
+
+    interface CrossingVisitor {
+
+        /**
+         * Called for an edge that crosses the query segment. Must return
+         * {@code true} to continue with the next edge.
+         */
+        boolean visit(SupportLink e);
+    }
+
+}
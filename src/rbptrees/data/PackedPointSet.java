@@ -0,0 +1,116 @@
+/*
+ * This file is part of SPSSH.
+ *
+ * SPSSH is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SPSSH is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with SPSSH. If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package rbptrees.data;
+
+import java.util.List;
+import rbptrees.data.ColoredPointSet.ColoredPoint;
+
+/**
+ * Immutable snapshot of a {@link ColoredPointSet}, with coordinates and color
+ * masks stored in flat arrays. Point {@code i} is point {@code i} of
+ * {@link ColoredPointSet#getPoints()}, which is also vertex {@code i} of every
+ * {@link SupportGraph} on that point set.
+ *
+ * The snapshot does not follow later changes to the point set. Color masks
+ * are only available if all colors are smaller than 64, see
+ * {@link ColoredPointSet#hasCompactColors()}; coordinates are always available.
+ */
+public final class PackedPointSet {
+
+    private final double[] xs;
+    private final double[] ys;
+    private final long[] colorMasks;
+    private final long allColors;
+    private final boolean compact;
+
+    public PackedPointSet(ColoredPointSet pointset) {
+        List<ColoredPoint> points = pointset.getPoints();
+        int n = points.size();
+        xs = new double[n];
+        ys = new double[n];
+        colorMasks = new long[n];
+        for (int i = 0; i < n; i++) {
+            ColoredPoint p = points.get(i);
+            xs[i] = p.getX();
+            ys[i] = p.getY();
+            colorMasks[i] = p.getColorMask();
+        }
+        allColors = ColoredPointSet.lowMask(pointset.getColors());
+        compact = pointset.hasCompactColors();
+    }
+
+    /**
+     * Returns whether the color masks describe all colors of the points.
+     */
+    public boolean hasColorMasks() {
+        return compact;
+    }
+
+    private void checkColorMasks() {
+        if (!compact) {
+            throw new IllegalStateException("colors must be smaller than " + Long.SIZE);
+        }
+    }
+
+    public int size() {
+        return xs.length;
+    }
+
+    public double x(int i) {
+        return xs[i];
+    }
+
+    public double y(int i) {
+        return ys[i];
+    }
+
+    public long colorMask(int i) {
+        checkColorMasks();
+        return colorMasks[i];
+    }
+
+    /**
+     * Returns the mask of all colors of the point set.
+     */
+    public long allColors() {
+        checkColorMasks();
+        return allColors;
+    }
+
+    public boolean hasColor(int i, int c) {
+        checkColorMasks();
+        return (colorMasks[i] & (1L << c)) != 0;
+    }
+
+    public boolean hasCommonColor(int i, int j) {
+        checkColorMasks();
+        return (colorMasks[i] & colorMasks[j]) != 0;
+    }
+
+    public double squaredDistance(int i, int j) {
+        double dx = xs[i] - xs[j];
+        double dy = ys[i] - ys[j];
+        return dx * dx + dy * dy;
+    }
+
+    public double distance(int i, int j) {
+        return Math.sqrt(squaredDistance(i, j));
+    }
+
+}
@@ -18,7 +18,6 @@
 
 package rbptrees.data;
 
-import java.util.ArrayList;
 import rbptrees.data.ColoredPointSet;
 import java.util.HashMap;
 import java.util.List;
@@ -27,6 +26,7 @@ import nl.tue.geometrycore.geometry.linear.LineSegment;
 import nl.tue.geometrycore.graphs.simple.SimpleEdge;
 import nl.tue.geometrycore.graphs.simple.SimpleGraph;
 import nl.tue.geometrycore.graphs.simple.SimpleVertex;
+import nl.tue.geometrycore.util.DoubleUtil;
 import rbptrees.data.ColoredPointSet.ColoredPoint;
 import rbptrees.data.SupportGraph.SupportLink;
 import rbptrees.data.SupportGraph.SupportNode;
@@ -36,6 +36,11 @@ public class SupportGraph extends SimpleGraph<LineSegment, SupportNode, SupportL
     private final ColoredPointSet pointset;
     private final Map<ColoredPoint, SupportNode> nodemap;
     private final String name;
+    private EdgeGrid grid;
+    // maintained by addEdge and removeEdge; the intersection count only after
+    // it has been requested once, and -1 before
+    private double totalLength;
+    private int intersectionCount = -1;
 
     public SupportGraph(ColoredPointSet pointset, String name) {
         this.pointset = pointset;
@@ -45,13 +50,24 @@ public class SupportGraph extends SimpleGraph<LineSegment, SupportNode, SupportL
         for (ColoredPoint p : pointset.iterate()) {
             nodemap.put(p, addVertex(p));
         }
+        this.grid = new EdgeGrid(getVertices());
     }
 
     public String getName() {
         return name;
     }
 
+    /**
+     * Returns the total length of all edges. This is maintained while edges
+     * are added and removed; with assertions enabled, it is checked against a
+     * full recomputation.
+     */
     public double getTotalLength() {
+        assert DoubleUtil.close(totalLength, computeTotalLength()) : "total length out of sync";
+        return totalLength;
+    }
+
+    private double computeTotalLength() {
         double l = 0;
         for (SupportLink e : getEdges()) {
             l += e.toGeometry().length();
@@ -59,22 +75,19 @@ public class SupportGraph extends SimpleGraph<LineSegment, SupportNode, SupportL
         return l;
     }
 
+    /**
+     * Returns the number of pairs of edges that intersect, not counting pairs
+     * of edges that share an endpoint. This is computed on the first call, and
+     * from then on maintained while edges are added and removed, so that
+     * building a graph does not pay for it. With assertions enabled, it is
+     * checked against a full recomputation.
+     */
     public int getIntersectionCount() {
-        int cnt = 0;
-        for (SupportLink e : getEdges()) {
-            for (SupportLink f : getEdges()) {
-                if (e.getGraphIndex() >= f.getGraphIndex()) {
-                    continue;
-                }
-                if (e.getCommonVertex(f) != null) {
-                    continue;
-                }
-                if (!e.toGeometry().intersect(f.toGeometry()).isEmpty()) {
-                    cnt++;
-                }
-            }
+        if (intersectionCount < 0) {
+            intersectionCount = Crossings.count(this);
         }
-        return cnt;
+        assert intersectionCount == Crossings.count(this) : "intersection count out of sync";
+        return intersectionCount;
     }
 
     public ColoredPointSet getPointset() {
@@ -105,6 +118,52 @@ public class SupportGraph extends SimpleGraph<LineSegment, SupportNode, SupportL
         return this.addEdge(from, to, new LineSegment(from.clone(), to.clone()));
     }
 
+    @Override
+    public SupportLink addEdge(SupportNode from, SupportNode to, LineSegment geometry) {
+        int m = getEdges().size();
+        SupportLink e = super.addEdge(from, to, geometry);
+        if (getEdges().size() > m) {
+            totalLength += geometry.length();
+            if (intersectionCount >= 0) {
+                intersectionCount += grid.count(from, to, null);
+            }
+            grid.insert(e);
+        }
+        return e;
+    }
+
+    @Override
+    public void removeEdge(SupportLink e) {
+        grid.remove(e);
+        if (intersectionCount >= 0) {
+            intersectionCount -= grid.count(e.getStart(), e.getEnd(), null);
+        }
+        super.removeEdge(e);
+        if (getEdges().isEmpty()) {
+            // avoid accumulating rounding errors
+            totalLength = 0;
+        } else {
+            totalLength -= e.toGeometry().length();
+        }
+    }
+
+    /**
+     * Returns whether segment {@code uv} intersects an edge of this graph,
+     * ignoring edges incident to {@code u} or {@code v}.
+     */
+    public boolean crossesAnyEdge(SupportNode u, SupportNode v) {
+        return grid.crosses(u, v, null);
+    }
+
+    /**
+     * Returns whether segment {@code uv} intersects an edge of this graph,
+     * ignoring edge {@code ignore} and edges incident to {@code u} or
+     * {@code v}.
+     */
+    public boolean crossesAnyEdge(SupportNode u, SupportNode v, SupportLink ignore) {
+        return grid.crosses(u, v, ignore);
+    }
+
     public class SupportNode extends SimpleVertex<LineSegment, SupportNode, SupportLink> {
 
         public ColoredPoint point;
@@ -123,9 +182,19 @@ public class SupportGraph extends SimpleGraph<LineSegment, SupportNode, SupportL
     public class SupportLink extends SimpleEdge<LineSegment, SupportNode, SupportLink> {
 
         public List<Integer> getColors() {
-            List<Integer> cols = new ArrayList<>(getStart().point.colors);
-            cols.retainAll(getEnd().point.colors);
-            return cols;
+            return getStart().point.getCommonColors(getEnd().point);
+        }
+
+        /**
+         * Returns the colors shared by both endpoints that are smaller than 64,
+         * see {@link ColoredPoint#getColorMask()}.
+         */
+        public long getColorMask() {
+            return getStart().point.getColorMask() & getEnd().point.getColorMask();
+        }
+
+        public boolean hasColor(int c) {
+            return getStart().point.hasColor(c) && getEnd().point.hasColor(c);
         }
 
         @Override
@@ -29,6 +29,10 @@ public class OptBranchBoundExperiment extends Experiment {
 
     boolean[] forcetrees = {false, true};
     boolean[] forceplanar = {false, true};
+    // run the branch and bound in parallel mode, see BruteForceSolver.setParallel
+    boolean parallel = false;
+    // the branch and bound only runs on fewer points than this
+    int bruteForceLimit = 20;
 
     @Override
     protected int[] getColors() {
@@ -62,13 +66,14 @@ public class OptBranchBoundExperiment extends Experiment {
                 LocalSearch ls = new LocalSearch(forceTree, forcePlanar);
                 runAlgorithm(ls);
 
-                if (getCurrentNumberOfPoints() < 20) {
+                if (getCurrentNumberOfPoints() < bruteForceLimit) {
                     BruteForceSolver bfs = new BruteForceSolver(forceTree, forcePlanar);
+                    bfs.setParallel(parallel);
                     bfs.addListener(listener);
                     bfs.initialize(points, ls.getOutput());
                     runAlgorithmNoInit(bfs);
                 } else {
-                    skipAlgorithm("skipping BruteForce for n = 20");
+                    skipAlgorithm("skipping BruteForce for n = " + getCurrentNumberOfPoints());
                 }
             }
         }